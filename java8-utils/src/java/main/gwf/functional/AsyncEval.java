@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.functional;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Description: AsyncEval defers the execution of a supplier like {@link Eval}, but runs
+ * it on an <code>Executor</code> instead of the calling thread. Every caller receives the
+ * same <code>CompletableFuture</code>, so the supplier runs once no matter how many
+ * threads ask for the value.<br>
+ * <br>
+ * If the supplier throws, the failed future is returned for the configured backoff
+ * window, after which the next caller starts a new attempt. Several AsyncEvals built with
+ * {@link Builder#prefetch() prefetch} can be used to warm expensive values in parallel at
+ * startup.<br>
+ * <br>
+ * Callers share the future, so they must not complete it themselves.
+ * <br>
+ * @param <T> The type of the value
+ */
+public class AsyncEval<T> implements Supplier<CompletableFuture<T>> {
+    private final Supplier<T> delegate;
+    private final Executor executor;
+    /**
+     * How long, in nanoseconds, a failed attempt is returned before it is retried.
+     */
+    private final long failureBackoff;
+
+    /**
+     * The current attempt, or null before the first get().
+     */
+    private final AtomicReference<Attempt<T>> attempt = new AtomicReference<>();
+
+    private static final class Attempt<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        /**
+         * Written before the future is completed exceptionally, so any thread that sees
+         * the failure also sees the time.
+         */
+        private volatile long failedAt;
+    }
+
+    private AsyncEval(BuilderImpl<T> builder) {
+        this.delegate = builder.supplier;
+        this.executor = builder.executor;
+        this.failureBackoff = builder.failureBackoff;
+        if (builder.prefetch) {
+            get();
+        }
+    }
+
+    /**
+     * Returns the shared future for the value, starting the supplier on the executor the
+     * first time this is called, and again once a failed attempt's backoff has elapsed.
+     */
+    @Override
+    public CompletableFuture<T> get() {
+        while (true) {
+            Attempt<T> current = attempt.get();
+            if (null != current && !isExpiredFailure(current)) {
+                return current.future;
+            }
+            Attempt<T> next = new Attempt<>();
+            if (attempt.compareAndSet(current, next)) {
+                start(next);
+                return next.future;
+            }
+            // another thread started an attempt or invalidated this one; look again
+        }
+    }
+
+    /**
+     * Waits for the value.
+     * @return the value
+     * @throws java.util.concurrent.CompletionException if the supplier failed
+     */
+    public T join() {
+        return get().join();
+    }
+
+    /**
+     * Discards the current attempt, so the next get() starts the supplier again. Callers
+     * already holding the previous future still receive its result.
+     */
+    public void invalidate() {
+        attempt.set(null);
+    }
+
+    private boolean isExpiredFailure(Attempt<T> current) {
+        return current.future.isCompletedExceptionally()
+                && System.nanoTime() - current.failedAt >= failureBackoff;
+    }
+
+    private void start(Attempt<T> next) {
+        try {
+            executor.execute(() -> {
+                try {
+                    next.future.complete(delegate.get());
+                } catch (Throwable t) {
+                    fail(next, t);
+                }
+            });
+        } catch (RuntimeException e) {
+            fail(next, e);
+        }
+    }
+
+    private static <T> void fail(Attempt<T> next, Throwable t) {
+        next.failedAt = System.nanoTime();
+        next.future.completeExceptionally(t);
+    }
+
+    /**
+     * An AsyncEval that runs the supplier on the executor the first time the value is
+     * requested. Failures are retried on the next request.
+     *
+     * @param supplier
+     * @param executor
+     * @return
+     */
+    public static <T> AsyncEval<T> defer(Supplier<T> supplier, Executor executor) {
+        return builder(supplier, executor).build();
+    }
+
+    public static <T> Builder<T> builder(Supplier<T> supplier, Executor executor) {
+        return new BuilderImpl<>(Objects.requireNonNull(supplier), Objects.requireNonNull(executor));
+    }
+
+    public static interface Builder<T> {
+        /**
+         * Start the supplier as soon as the AsyncEval is built, rather than on the first
+         * get().<br><br>
+         * <i>Default: off</i>
+         * @return
+         */
+        Builder<T> prefetch();
+        /**
+         * How long a failed attempt is returned to callers before the next caller starts
+         * a new attempt.<br><br>
+         * <i>Default: 0 (retry on the next get())</i>
+         * @param duration
+         * @param unit
+         * @return
+         */
+        Builder<T> failureBackoff(long duration, TimeUnit unit);
+        AsyncEval<T> build();
+    }
+
+    private static class BuilderImpl<T> implements Builder<T> {
+        private final Supplier<T> supplier;
+        private final Executor executor;
+        private boolean prefetch = false;
+        private long failureBackoff = 0;
+
+        private BuilderImpl(Supplier<T> supplier, Executor executor) {
+            this.supplier = supplier;
+            this.executor = executor;
+        }
+
+        @Override
+        public Builder<T> prefetch() {
+            prefetch = true;
+            return this;
+        }
+        @Override
+        public Builder<T> failureBackoff(long duration, TimeUnit unit) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("failureBackoff must not be negative");
+            }
+            failureBackoff = Objects.requireNonNull(unit).toNanos(duration);
+            return this;
+        }
+        @Override
+        public AsyncEval<T> build() {
+            return new AsyncEval<>(this);
+        }
+    }
+}
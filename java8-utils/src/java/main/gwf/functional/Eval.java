@@ -6,13 +6,28 @@
  */
 package gwf.functional;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 /**
  * Description: Eval defers the execution of a supplier until <code>get()</code> is called the first time and then caches the result so that the supplier is only executed once.
  * <br>
+ * <br>
+ * Evals can be composed with {@link #map(Function)}, {@link #flatMap(Function)},
+ * {@link #zip(Supplier, BiFunction)} and {@link #combine(List, Function)} into a lazy
+ * graph. When a derived Eval is demanded, its unevaluated upstream Evals are resolved in
+ * parallel on the common ForkJoinPool, and invalidating an Eval (by re-deferring it)
+ * invalidates everything derived from it, so only the affected values are recomputed.
+ * <br>
  * @author gforbis created at Jul 10, 2019
  */
 public class Eval<T> implements Supplier<T> {
@@ -22,59 +37,330 @@ public class Eval<T> implements Supplier<T> {
     private final Supplier<T> delegate;
 
     /**
-     * The result. If null, the supplier delegate will be called to refresh the cached
-     * value. If the supplier returns null, the cached value will be an
-     * Optional.empty();
+     * Marks an Eval whose supplier has not been evaluated yet. Null is a legal result, so
+     * it cannot serve as the marker.
+     */
+    private static final Object UNSET = new Object();
+
+    /**
+     * The result. If {@link #UNSET}, the supplier delegate will be called to refresh the
+     * cached value. Holding the raw value instead of an Optional avoids a wrapper
+     * allocation per evaluation and an unwrap per get.<br>
+     * <br>
+     * Volatile so that the value is safely published to threads that never enter the
+     * lock; once populated, <code>get()</code> is a single volatile read.
+     */
+    private volatile Object deferred = UNSET;
+
+    private static final Eval<?>[] NO_SOURCES = new Eval<?>[0];
+    @SuppressWarnings("unchecked")
+    private static final WeakReference<Eval<?>>[] NO_DEPENDENTS = (WeakReference<Eval<?>>[]) new WeakReference<?>[0];
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Eval, WeakReference[]> DEPENDENTS =
+            AtomicReferenceFieldUpdater.newUpdater(Eval.class, WeakReference[].class, "dependents");
+
+    /**
+     * The upstream Evals the delegate reads, resolved in parallel before it runs.
+     */
+    private final Eval<?>[] sources;
+
+    /**
+     * The downstream Evals derived from this one, invalidated along with it. Weakly held so
+     * that a long-lived Eval does not keep discarded derived values alive. Copy-on-write
+     * via {@link #DEPENDENTS}.
      */
-    private Optional<T> deferred = null;
+    private volatile WeakReference<Eval<?>>[] dependents = NO_DEPENDENTS;
 
     /**
      * Private constructor to use the static defer method for clarity.
      * @param supplier
      */
     private Eval(Supplier<T> supplier) {
+        this(supplier, NO_SOURCES);
+    }
+
+    private Eval(Supplier<T> supplier, Eval<?>[] sources) {
         this.delegate = supplier;
+        this.sources = sources;
     }
 
     /**
      * The first time this is called, caches the result from the provided Supplier.
-     * Afterward returns the cached result. Should be thread-safe.
+     * Afterward returns the cached result. Thread-safe: concurrent first callers of the
+     * same instance wait for a single evaluation, while other Eval instances are never
+     * blocked.
      */
     @Override
+    @SuppressWarnings("unchecked")
     public T get() {
-        if (null == deferred) {
-            synchronized (Eval.class) {
-                if (null == deferred) {
-                    deferred = Optional.ofNullable(delegate.get());
+        Object result = deferred;
+        if (UNSET == result) {
+            result = evaluate();
+        }
+        return (T) result;
+    }
+
+    /**
+     * Slow path of {@link #get()}, kept separate so the fast path stays small enough to
+     * inline.
+     */
+    private Object evaluate() {
+        resolveSources();
+        return evaluateDelegate();
+    }
+
+    private synchronized Object evaluateDelegate() {
+        Object result = deferred;
+        if (UNSET == result) {
+            result = delegate.get();
+            deferred = result;
+        }
+        return result;
+    }
+    
+    /**
+     * When two or more upstream Evals still need evaluating, evaluates them in parallel so
+     * that independent branches of the graph overlap. A single pending source is left to
+     * the delegate, which evaluates it on this thread anyway.
+     */
+    private void resolveSources() {
+        List<ForkJoinTask<?>> pending = null;
+        for (Eval<?> source : sources) {
+            if (UNSET == source.deferred) {
+                if (null == pending) {
+                    pending = new ArrayList<>(sources.length);
                 }
+                pending.add(ForkJoinTask.adapt(source::get));
             }
         }
-        return deferred.orElse(null);
+        if (null != pending && pending.size() > 1) {
+            ForkJoinTask.invokeAll(pending);
+        }
     }
-    
+
     /**
-     * Invalidates the cache and updates it from the underlying supplier on the next get.
+     * Invalidates the cache and updates it from the underlying supplier on the next get,
+     * then invalidates every Eval derived from this one.<br>
+     * <br>
+     * The reset is synchronized so that an evaluation already in progress cannot republish
+     * its stale result after the invalidation.
      */
     private Eval<T> invalidate() {
-        deferred = null;
+        synchronized (this) {
+            deferred = UNSET;
+        }
+        for (WeakReference<Eval<?>> ref : dependents) {
+            Eval<?> dependent = ref.get();
+            if (null != dependent) {
+                dependent.invalidate();
+            }
+        }
         return this;
     }
 
+    /**
+     * Registers a downstream Eval to be invalidated along with this one, dropping any
+     * dependents that have been collected.
+     */
+    @SuppressWarnings("unchecked")
+    private void addDependent(Eval<?> dependent) {
+        WeakReference<Eval<?>>[] current;
+        WeakReference<Eval<?>>[] updated;
+        do {
+            current = dependents;
+            List<WeakReference<Eval<?>>> live = new ArrayList<>(current.length + 1);
+            for (WeakReference<Eval<?>> ref : current) {
+                Eval<?> existing = ref.get();
+                if (dependent == existing) {
+                    return;
+                }
+                if (null != existing) {
+                    live.add(ref);
+                }
+            }
+            live.add(new WeakReference<>(dependent));
+            updated = live.toArray((WeakReference<Eval<?>>[]) new WeakReference<?>[live.size()]);
+        } while (!DEPENDENTS.compareAndSet(this, current, updated));
+    }
+
+    /**
+     * Unregisters a downstream Eval, dropping any dependents that have been collected.
+     */
+    @SuppressWarnings("unchecked")
+    private void removeDependent(Eval<?> dependent) {
+        WeakReference<Eval<?>>[] current;
+        WeakReference<Eval<?>>[] updated;
+        do {
+            current = dependents;
+            List<WeakReference<Eval<?>>> live = new ArrayList<>(current.length);
+            for (WeakReference<Eval<?>> ref : current) {
+                Eval<?> existing = ref.get();
+                if (null != existing && dependent != existing) {
+                    live.add(ref);
+                }
+            }
+            if (live.size() == current.length) {
+                return;
+            }
+            updated = live.isEmpty() ? NO_DEPENDENTS
+                    : live.toArray((WeakReference<Eval<?>>[]) new WeakReference<?>[live.size()]);
+        } while (!DEPENDENTS.compareAndSet(this, current, updated));
+    }
+
+    /**
+     * Creates an Eval over the given upstream Evals and registers it as their dependent.
+     * Registration happens after construction so that no other thread can reach a
+     * partially constructed Eval through a dependents array.
+     */
+    private static <R> Eval<R> derive(Supplier<R> supplier, Eval<?>... sources) {
+        Eval<R> derived = new Eval<>(supplier, sources);
+        for (Eval<?> source : sources) {
+            source.addDependent(derived);
+        }
+        return derived;
+    }
+
+    /**
+     * A lazy Eval of the function applied to this Eval's value. It is invalidated whenever
+     * this Eval is.
+     * 
+     * @param fn
+     * @return
+     */
+    public <U> Eval<U> map(Function<? super T, ? extends U> fn) {
+        Objects.requireNonNull(fn);
+        return derive(() -> fn.apply(get()), this);
+    }
+
+    /**
+     * A lazy Eval of the supplier the function returns for this Eval's value. It is
+     * invalidated whenever this Eval is, and, if the supplier is itself an Eval, whenever
+     * that Eval is. Only the Eval returned by the latest evaluation is tracked.
+     * 
+     * @param fn
+     * @return
+     */
+    public <U> Eval<U> flatMap(Function<? super T, ? extends Supplier<? extends U>> fn) {
+        Objects.requireNonNull(fn);
+        List<Eval<U>> self = new ArrayList<>(1);
+        // The inner Eval of the previous evaluation; guarded by the derived Eval's lock
+        Eval<?>[] previous = new Eval<?>[1];
+        Eval<U> derived = derive(() -> {
+            Supplier<? extends U> inner = Objects.requireNonNull(fn.apply(get()));
+            Eval<?> current = inner instanceof Eval ? (Eval<?>) inner : null;
+            if (current != previous[0]) {
+                if (null != current) {
+                    current.addDependent(self.get(0));
+                }
+                if (null != previous[0]) {
+                    previous[0].removeDependent(self.get(0));
+                }
+                previous[0] = current;
+            }
+            return inner.get();
+        }, this);
+        self.add(derived);
+        return derived;
+    }
+
+    /**
+     * A lazy Eval of the function applied to this Eval's value and the other supplier's
+     * value. If the other supplier is an Eval, both are resolved in parallel and the result
+     * is invalidated whenever either one is; otherwise it is simply called.
+     * 
+     * @param other
+     * @param fn
+     * @return
+     */
+    public <U, R> Eval<R> zip(Supplier<? extends U> other, BiFunction<? super T, ? super U, ? extends R> fn) {
+        Objects.requireNonNull(other);
+        Objects.requireNonNull(fn);
+        Supplier<R> supplier = () -> fn.apply(get(), other.get());
+        if (other instanceof Eval) {
+            return derive(supplier, this, (Eval<?>) other);
+        } else {
+            return derive(supplier, this);
+        }
+    }
+
+    /**
+     * A lazy Eval of the function applied to the values of all of the suppliers, in order.
+     * The suppliers that are Evals are resolved in parallel, and the result is invalidated
+     * whenever any of them is.
+     * 
+     * @param suppliers
+     * @param fn
+     * @return
+     */
+    public static <T, R> Eval<R> combine(List<? extends Supplier<? extends T>> suppliers, Function<? super List<T>, ? extends R> fn) {
+        List<Supplier<? extends T>> inputs = new ArrayList<>(suppliers);
+        Objects.requireNonNull(fn);
+        List<Eval<?>> sources = new ArrayList<>(inputs.size());
+        for (Supplier<? extends T> input : inputs) {
+            if (Objects.requireNonNull(input) instanceof Eval) {
+                sources.add((Eval<?>) input);
+            }
+        }
+        return derive(() -> {
+            List<T> values = new ArrayList<>(inputs.size());
+            for (Supplier<? extends T> input : inputs) {
+                values.add(input.get());
+            }
+            return fn.apply(Collections.unmodifiableList(values));
+        }, sources.toArray(NO_SOURCES));
+    }
+
     /**
      * A Supplier that lazily evaluates the supplier the first time the value is
      * requested, and thereafter returns the cached value. Detects if the supplier is an
      * instance of Eval and returns the provided instance instead of wrapping it.<br>
      * <br>
-     * Re-deferring an Eval will invalidate the cache.
+     * Re-deferring an Eval will invalidate the cache, and the cache of every Eval derived
+     * from it.
      * 
      * @param supplier
      * @return
      */
-    public static <T> Supplier<T> defer(Supplier<T> supplier) {
+    public static <T> Eval<T> defer(Supplier<T> supplier) {
         if (Eval.class.isAssignableFrom(supplier.getClass())) {
             return ((Eval<T>)supplier).invalidate();
         } else {
             return new Eval<T>(Objects.requireNonNull(supplier));
         }
     }
+
+    /**
+     * A Function that lazily evaluates the function the first time each key is requested,
+     * and thereafter returns the cached value for that key. The function is executed only
+     * once per key, even under concurrent requests for the same key.<br>
+     * <br>
+     * The returned Memo is unbounded; use {@link Memo#builder(Function)} to bound it by
+     * size or weight.
+     * 
+     * @param function
+     * @return
+     */
+    public static <K, V> Memo<K, V> memoize(Function<? super K, ? extends V> function) {
+        return Memo.<K, V>builder(function).build();
+    }
+
+    /**
+     * A Supplier that lazily evaluates the supplier and caches the value for the given
+     * number of milliseconds, after which the next caller re-evaluates it. If the duration
+     * is less than 1, the provided supplier is returned to perform an uncached lookup.<br>
+     * <br>
+     * See {@link ExpiringEval#builder(Supplier)} for refresh-ahead and
+     * stale-while-revalidate caching.
+     * 
+     * @param supplier
+     * @param durationMillis
+     * @return
+     */
+    public static <T> Supplier<T> defer(Supplier<T> supplier, long durationMillis) {
+        if (durationMillis > 0) {
+            return ExpiringEval.defer(supplier, durationMillis, TimeUnit.MILLISECONDS);
+        } else {
+            return Objects.requireNonNull(supplier);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.functional;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Description: ExpiringEval is the time-limited counterpart of {@link Eval}: a Supplier
+ * whose cached value is only good for a limited time. Three modes are supported, and may
+ * be combined:
+ * <ul>
+ * <li><b>TTL</b> - once the value is older than <code>expireAfter</code>, the next
+ * caller blocks while the supplier is re-evaluated.</li>
+ * <li><b>Refresh-ahead</b> - once the value is older than <code>refreshAfter</code>
+ * (but not yet expired), exactly one reload is started, on the configured
+ * <code>Executor</code> if any, while all other callers keep the current value. Without
+ * an executor, the caller that starts the reload runs it and waits for it.</li>
+ * <li><b>Stale-while-revalidate</b> - an expired value is still returned while exactly
+ * one thread reloads it; only the very first evaluation blocks.</li>
+ * </ul>
+ * A failed reload is logged and the previous value is kept, except when an expired
+ * value is being reloaded synchronously, in which case the exception propagates to the
+ * caller. A reload that completes after {@link #invalidate()}, or after a newer value
+ * was loaded, is discarded.
+ * <br>
+ * @param <T> The type of the cached value
+ */
+public class ExpiringEval<T> implements Supplier<T> {
+    private static final Logger LOG = LogManager.getLogger(ExpiringEval.class);
+
+    /**
+     * The supplier delegate that populates the cache.
+     */
+    private final Supplier<T> delegate;
+    /**
+     * Age in nanoseconds after which the cached value may no longer be returned
+     * (unless {@link #staleWhileRevalidate}).
+     */
+    private final long expireAfter;
+    /**
+     * Age in nanoseconds after which a single reload is started. Never greater than
+     * {@link #expireAfter}.
+     */
+    private final long refreshAfter;
+    /**
+     * Runs reloads in the background. If null, the caller that wins the reload runs it.
+     */
+    private final Executor executor;
+    private final boolean staleWhileRevalidate;
+
+    /**
+     * The cached value and its load time. If null, the next get() evaluates the
+     * supplier.
+     */
+    private volatile Entry<T> entry = null;
+    /**
+     * Incremented whenever {@link #entry} is replaced or cleared, so that a reload can
+     * tell whether it is still current. Guarded by this.
+     */
+    private long generation = 0;
+    /**
+     * Ensures that only one reload is in flight at any time.
+     */
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+    private static final class Entry<T> {
+        private final T value;
+        private final long loadedAt;
+
+        private Entry(T value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private ExpiringEval(BuilderImpl<T> builder) {
+        this.delegate = builder.supplier;
+        this.expireAfter = builder.expireAfter;
+        this.refreshAfter = Math.min(builder.refreshAfter, builder.expireAfter);
+        this.executor = builder.executor;
+        this.staleWhileRevalidate = builder.staleWhileRevalidate;
+    }
+
+    /**
+     * Returns the cached value, evaluating or reloading the supplier according to the
+     * configured mode.
+     */
+    @Override
+    public T get() {
+        Entry<T> current = entry;
+        if (null == current) {
+            return load(null).value;
+        }
+        long age = System.nanoTime() - current.loadedAt;
+        if (age < refreshAfter) {
+            return current.value;
+        }
+        if (age < expireAfter || staleWhileRevalidate) {
+            return reload(current).value;
+        }
+        return load(current).value;
+    }
+
+    /**
+     * Discards the cached value; the next get() will block on the supplier.
+     */
+    public synchronized void invalidate() {
+        entry = null;
+        generation++;
+    }
+
+    /**
+     * Blocking evaluation used when there is no value that may be returned.
+     * @param stale the entry the caller found, or null
+     */
+    private synchronized Entry<T> load(Entry<T> stale) {
+        Entry<T> current = entry;
+        if (current == stale) {
+            current = new Entry<>(delegate.get(), System.nanoTime());
+            entry = current;
+            generation++;
+        }
+        return current;
+    }
+
+    /**
+     * Starts a reload unless one is already in flight.
+     * @param current the entry to keep serving until the reload completes
+     * @return the entry the caller should return
+     */
+    private Entry<T> reload(Entry<T> current) {
+        if (!reloading.compareAndSet(false, true)) {
+            return current;
+        }
+        if (null == executor) {
+            return refresh(current);
+        }
+        try {
+            executor.execute(() -> refresh(current));
+        } catch (RejectedExecutionException e) {
+            reloading.set(false);
+            LOG.warn("Refresh rejected by executor; keeping the previous value", e);
+        }
+        return current;
+    }
+
+    /**
+     * Evaluates the supplier and publishes the result, unless the entry was replaced or
+     * invalidated meanwhile. Only ever run by the thread that won {@link #reloading}.
+     */
+    private Entry<T> refresh(Entry<T> current) {
+        try {
+            long started;
+            synchronized (this) {
+                started = generation;
+            }
+            Entry<T> refreshed = new Entry<>(delegate.get(), System.nanoTime());
+            synchronized (this) {
+                if (started != generation) {
+                    return null == entry ? current : entry;
+                }
+                entry = refreshed;
+                generation++;
+            }
+            return refreshed;
+        } catch (RuntimeException e) {
+            LOG.warn("Refresh failed; keeping the previous value", e);
+            return current;
+        } finally {
+            reloading.set(false);
+        }
+    }
+
+    /**
+     * A Supplier that caches the value from the provided supplier for the given duration,
+     * after which the next caller re-evaluates it. Equivalent to
+     * <code>builder(supplier).expireAfter(duration, unit).build()</code>.
+     *
+     * @param supplier
+     * @param duration
+     * @param unit
+     * @return
+     */
+    public static <T> ExpiringEval<T> defer(Supplier<T> supplier, long duration, TimeUnit unit) {
+        return builder(supplier).expireAfter(duration, unit).build();
+    }
+
+    public static <T> Builder<T> builder(Supplier<T> supplier) {
+        return new BuilderImpl<>(Objects.requireNonNull(supplier));
+    }
+
+    public static interface Builder<T> {
+        /**
+         * How long a value may be returned after it was evaluated.<br><br>
+         * <i>Default: forever</i>
+         * @param duration
+         * @param unit
+         * @return
+         */
+        Builder<T> expireAfter(long duration, TimeUnit unit);
+        /**
+         * How long after evaluation a single background reload is started while callers
+         * keep receiving the current value. Values larger than <code>expireAfter</code>
+         * are capped to it. Without {@link #refreshOn(Executor)}, the caller that starts
+         * the reload is blocked by it.<br><br>
+         * <i>Default: same as expireAfter</i>
+         * @param duration
+         * @param unit
+         * @return
+         */
+        Builder<T> refreshAfter(long duration, TimeUnit unit);
+        /**
+         * The executor reloads are run on. Without one, the first caller to notice that a
+         * reload is due runs it while other callers keep the current value.<br><br>
+         * <i>Default: none</i>
+         * @param executor
+         * @return
+         */
+        Builder<T> refreshOn(Executor executor);
+        /**
+         * Keep returning an expired value while a single reload is in flight, instead of
+         * blocking callers until the reload completes.<br><br>
+         * <i>Default: off</i>
+         * @return
+         */
+        Builder<T> staleWhileRevalidate();
+        ExpiringEval<T> build();
+    }
+
+    private static class BuilderImpl<T> implements Builder<T> {
+        private final Supplier<T> supplier;
+        private long expireAfter = Long.MAX_VALUE;
+        private long refreshAfter = Long.MAX_VALUE;
+        private boolean refreshAfterSet = false;
+        private Executor executor = null;
+        private boolean staleWhileRevalidate = false;
+
+        private BuilderImpl(Supplier<T> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public Builder<T> expireAfter(long duration, TimeUnit unit) {
+            expireAfter = toPositiveNanos(duration, unit, "expireAfter");
+            if (!refreshAfterSet) {
+                refreshAfter = expireAfter;
+            }
+            return this;
+        }
+        @Override
+        public Builder<T> refreshAfter(long duration, TimeUnit unit) {
+            refreshAfter = toPositiveNanos(duration, unit, "refreshAfter");
+            refreshAfterSet = true;
+            return this;
+        }
+        @Override
+        public Builder<T> refreshOn(Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+        @Override
+        public Builder<T> staleWhileRevalidate() {
+            staleWhileRevalidate = true;
+            return this;
+        }
+        @Override
+        public ExpiringEval<T> build() {
+            return new ExpiringEval<>(this);
+        }
+
+        private static long toPositiveNanos(long duration, TimeUnit unit, String name) {
+            if (duration < 1) {
+                throw new IllegalArgumentException(name + " must be a positive duration");
+            }
+            return Objects.requireNonNull(unit).toNanos(duration);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.functional;
+
+import java.util.Objects;
+import java.util.function.IntSupplier;
+
+/**
+ * Description: IntEval is the <code>int</code> specialization of {@link Eval}. It defers the
+ * execution of an IntSupplier until <code>getAsInt()</code> is called the first time and then
+ * caches the result, without boxing on either the compute or the read path.
+ * <br>
+ */
+public class IntEval implements IntSupplier {
+    /**
+     * The supplier delegate that populates the cache.
+     */
+    private final IntSupplier delegate;
+
+    /**
+     * True once {@link #deferred} holds the result. Written after the result, so a thread
+     * that reads true also sees the result.
+     */
+    private volatile boolean evaluated = false;
+
+    /**
+     * The result. Only meaningful once {@link #evaluated} is true.
+     */
+    private int deferred;
+
+    /**
+     * Private constructor to use the static defer method for clarity.
+     * @param supplier
+     */
+    private IntEval(IntSupplier supplier) {
+        this.delegate = supplier;
+    }
+
+    /**
+     * The first time this is called, caches the result from the provided IntSupplier.
+     * Afterward returns the cached result. Thread-safe in the same way as
+     * {@link Eval#get()}.
+     */
+    @Override
+    public int getAsInt() {
+        if (!evaluated) {
+            return evaluate();
+        }
+        return deferred;
+    }
+
+    private synchronized int evaluate() {
+        if (!evaluated) {
+            deferred = delegate.getAsInt();
+            evaluated = true;
+        }
+        return deferred;
+    }
+
+    /**
+     * Invalidates the cache and updates it from the underlying supplier on the next get.
+     */
+    private synchronized IntEval invalidate() {
+        evaluated = false;
+        return this;
+    }
+
+    /**
+     * An IntSupplier that lazily evaluates the supplier the first time the value is
+     * requested, and thereafter returns the cached value. Detects if the supplier is an
+     * instance of IntEval and returns the provided instance instead of wrapping it.<br>
+     * <br>
+     * Re-deferring an IntEval will invalidate the cache.
+     * 
+     * @param supplier
+     * @return
+     */
+    public static IntSupplier defer(IntSupplier supplier) {
+        if (supplier instanceof IntEval) {
+            return ((IntEval) supplier).invalidate();
+        } else {
+            return new IntEval(Objects.requireNonNull(supplier));
+        }
+    }
+}
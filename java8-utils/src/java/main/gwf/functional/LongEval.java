@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.functional;
+
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Description: LongEval is the <code>long</code> specialization of {@link Eval}. It defers the
+ * execution of a LongSupplier until <code>getAsLong()</code> is called the first time and then
+ * caches the result, without boxing on either the compute or the read path.
+ * <br>
+ */
+public class LongEval implements LongSupplier {
+    /**
+     * The supplier delegate that populates the cache.
+     */
+    private final LongSupplier delegate;
+
+    /**
+     * True once {@link #deferred} holds the result. Written after the result, so a thread
+     * that reads true also sees the result.
+     */
+    private volatile boolean evaluated = false;
+
+    /**
+     * The result. Only meaningful once {@link #evaluated} is true. Volatile because a
+     * long is not written atomically (JLS 17.7): a reader racing a re-evaluation after
+     * {@link #invalidate()} could otherwise see half of each value.
+     */
+    private volatile long deferred;
+
+    /**
+     * Private constructor to use the static defer method for clarity.
+     * @param supplier
+     */
+    private LongEval(LongSupplier supplier) {
+        this.delegate = supplier;
+    }
+
+    /**
+     * The first time this is called, caches the result from the provided LongSupplier.
+     * Afterward returns the cached result. Thread-safe in the same way as
+     * {@link Eval#get()}.
+     */
+    @Override
+    public long getAsLong() {
+        if (!evaluated) {
+            return evaluate();
+        }
+        return deferred;
+    }
+
+    private synchronized long evaluate() {
+        if (!evaluated) {
+            deferred = delegate.getAsLong();
+            evaluated = true;
+        }
+        return deferred;
+    }
+
+    /**
+     * Invalidates the cache and updates it from the underlying supplier on the next get.
+     */
+    private synchronized LongEval invalidate() {
+        evaluated = false;
+        return this;
+    }
+
+    /**
+     * A LongSupplier that lazily evaluates the supplier the first time the value is
+     * requested, and thereafter returns the cached value. Detects if the supplier is an
+     * instance of LongEval and returns the provided instance instead of wrapping it.<br>
+     * <br>
+     * Re-deferring a LongEval will invalidate the cache.
+     * 
+     * @param supplier
+     * @return
+     */
+    public static LongSupplier defer(LongSupplier supplier) {
+        if (supplier instanceof LongEval) {
+            return ((LongEval) supplier).invalidate();
+        } else {
+            return new LongEval(Objects.requireNonNull(supplier));
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.functional;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Description: Memo is the keyed companion of {@link Eval}. It defers the execution of a
+ * function for each key until that key is first applied and then caches the result, so
+ * that the function is executed only once per key even when many threads ask for the
+ * same key at the same time.<br>
+ * <br>
+ * A Memo may be bounded by entry count or by total weight. When the bound is exceeded,
+ * entries are evicted using a CLOCK (second chance) approximation of LRU: a hit only
+ * sets a flag on the entry, so the hit path takes no lock and allocates nothing, and the
+ * eviction sweep skips recently used entries once before removing them.<br>
+ * <br>
+ * Keys must not be null. The function may return null, which is cached like any other
+ * value. If the function throws, nothing is cached and the next caller retries.
+ * <br>
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class Memo<K, V> implements Function<K, V> {
+    /**
+     * Marks a node whose value has not been computed yet. Null is a legal value.
+     */
+    private static final Object UNSET = new Object();
+
+    private final Function<? super K, ? extends V> function;
+    private final ConcurrentHashMap<K, Node<K, V>> nodes = new ConcurrentHashMap<>();
+    private final long maximumWeight;
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+    private final AtomicLong weight = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Only one thread sweeps at a time; others skip eviction rather than wait for it.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /**
+     * The clock hand. Guarded by {@link #evictionLock}.
+     */
+    private Iterator<Node<K, V>> hand = null;
+
+    private static final class Node<K, V> {
+        private final K key;
+        /**
+         * The cached value, or {@link Memo#UNSET}. Written under the node's monitor.
+         */
+        private volatile Object value = UNSET;
+        /**
+         * Set on every hit, cleared by the eviction sweep.
+         */
+        private volatile boolean referenced = true;
+        /**
+         * Guarded by the node's monitor.
+         */
+        private int weight = 0;
+        /**
+         * True once {@link #weight} has been added to the total. Guarded by the node's
+         * monitor.
+         */
+        private boolean counted = false;
+        /**
+         * True once the node is no longer in the map. Guarded by the node's monitor.
+         */
+        private boolean removed = false;
+
+        private Node(K key) {
+            this.key = key;
+        }
+    }
+
+    private Memo(BuilderImpl<K, V> builder) {
+        this.function = builder.function;
+        this.maximumWeight = builder.maximumWeight;
+        this.weigher = builder.weigher;
+    }
+
+    /**
+     * Returns the cached value for the key, applying the function the first time the key
+     * is requested (or after it was evicted or invalidated).
+     *
+     * @throws NullPointerException if key is <code>null</code>
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V apply(K key) {
+        Node<K, V> node = nodes.get(key);
+        if (null != node) {
+            Object value = node.value;
+            if (UNSET != value) {
+                if (!node.referenced) {
+                    node.referenced = true;
+                }
+                hits.increment();
+                return (V) value;
+            }
+        } else {
+            node = nodes.computeIfAbsent(key, Node::new);
+        }
+        return load(node);
+    }
+
+    /**
+     * Slow path of {@link #apply(Object)}. Concurrent callers for the same key wait on the
+     * node's monitor for a single evaluation; other keys are never blocked.
+     */
+    @SuppressWarnings("unchecked")
+    private V load(Node<K, V> node) {
+        V value;
+        synchronized (node) {
+            Object current = node.value;
+            if (UNSET != current) {
+                hits.increment();
+                return (V) current;
+            }
+            misses.increment();
+            try {
+                value = function.apply(node.key);
+            } catch (RuntimeException | Error e) {
+                if (nodes.remove(node.key, node)) {
+                    node.removed = true;
+                }
+                throw e;
+            }
+            node.value = value;
+            if (!node.removed) {
+                node.weight = weigher.applyAsInt(node.key, value);
+                node.counted = true;
+                weight.addAndGet(node.weight);
+            }
+        }
+        evictIfNeeded();
+        return value;
+    }
+
+    /**
+     * Removes the cached value for the key, if any.
+     * @param key
+     */
+    public void invalidate(K key) {
+        Node<K, V> node = nodes.remove(key);
+        if (null != node) {
+            discard(node);
+        }
+    }
+
+    /**
+     * Removes all cached values.
+     */
+    public void invalidateAll() {
+        for (K key : nodes.keySet()) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * @return the number of cached entries, including entries still being computed
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return the total weight of the cached entries; the entry count when no weigher is
+     *         configured
+     */
+    public long weight() {
+        return weight.get();
+    }
+
+    /**
+     * @return a point-in-time copy of the hit, miss and eviction counters
+     */
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    /**
+     * Called after a node has been removed from the map.
+     */
+    private void discard(Node<K, V> node) {
+        synchronized (node) {
+            node.removed = true;
+            if (node.counted) {
+                node.counted = false;
+                weight.addAndGet(-node.weight);
+            }
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (weight.get() > maximumWeight && evictionLock.tryLock()) {
+            try {
+                sweep();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Advances the clock hand until the total weight is within bounds. Each entry is
+     * passed over at most once before it becomes eligible, so two turns of the clock are
+     * enough; the step limit only guards against entries that are still being computed.
+     */
+    private void sweep() {
+        long steps = 2L * nodes.size() + 2;
+        while (weight.get() > maximumWeight && steps-- > 0) {
+            if (null == hand || !hand.hasNext()) {
+                hand = nodes.values().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            Node<K, V> node = hand.next();
+            if (UNSET == node.value) {
+                continue;
+            }
+            if (node.referenced) {
+                node.referenced = false;
+            } else if (nodes.remove(node.key, node)) {
+                discard(node);
+                evictions.increment();
+            }
+        }
+    }
+
+    public static <K, V> Builder<K, V> builder(Function<? super K, ? extends V> function) {
+        return new BuilderImpl<>(Objects.requireNonNull(function));
+    }
+
+    /**
+     * Point-in-time counters of a {@link Memo}. A caller that waited for another thread's
+     * evaluation of the same key counts as a hit.
+     */
+    public static final class Stats {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        private Stats(long hitCount, long missCount, long evictionCount) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+        }
+
+        public long hitCount() {
+            return hitCount;
+        }
+
+        public long missCount() {
+            return missCount;
+        }
+
+        public long evictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * @return hits divided by requests, or 1.0 if there were no requests
+         */
+        public double hitRate() {
+            long requests = hitCount + missCount;
+            return 0 == requests ? 1.0 : (double) hitCount / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount;
+        }
+    }
+
+    public static interface Builder<K, V> {
+        /**
+         * The maximum number of entries to cache. Cannot be combined with
+         * {@link #maximumWeight(long, ToIntBiFunction)}.<br><br>
+         * <i>Default: unbounded</i>
+         * @param maximumSize
+         * @return
+         */
+        Builder<K, V> maximumSize(long maximumSize);
+        /**
+         * The maximum total weight of the cached entries, where each entry's weight is
+         * computed once, when its value is computed. Cannot be combined with
+         * {@link #maximumSize(long)}.<br><br>
+         * <i>Default: unbounded</i>
+         * @param maximumWeight
+         * @param weigher must return a non-negative weight
+         * @return
+         */
+        Builder<K, V> maximumWeight(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher);
+        Memo<K, V> build();
+    }
+
+    private static class BuilderImpl<K, V> implements Builder<K, V> {
+        private final Function<? super K, ? extends V> function;
+        private long maximumWeight = Long.MAX_VALUE; // Default to unbounded
+        private ToIntBiFunction<? super K, ? super V> weigher = (k, v) -> 1;
+        private boolean bounded = false;
+
+        private BuilderImpl(Function<? super K, ? extends V> function) {
+            this.function = function;
+        }
+
+        @Override
+        public Builder<K, V> maximumSize(long maximumSize) {
+            return bound(maximumSize, (k, v) -> 1);
+        }
+        @Override
+        public Builder<K, V> maximumWeight(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher) {
+            return bound(maximumWeight, Objects.requireNonNull(weigher));
+        }
+        @Override
+        public Memo<K, V> build() {
+            return new Memo<>(this);
+        }
+
+        private Builder<K, V> bound(long maximum, ToIntBiFunction<? super K, ? super V> weigher) {
+            if (bounded) {
+                throw new IllegalStateException("maximumSize and maximumWeight cannot be combined");
+            }
+            if (maximum < 0) {
+                throw new IllegalArgumentException("maximum must not be negative");
+            }
+            this.bounded = true;
+            this.maximumWeight = maximum;
+            this.weigher = weigher;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Description: A sink that hands measurements to other sinks on a daemon thread, so that
+ * the measuring thread never waits on their locks, formatting or I/O.<br>
+ * <br>
+ * Measurements are queued in a fixed ring buffer that any number of threads write
+ * without locking and without allocating: a slot is claimed with one compare-and-set on
+ * the write position and published with an ordered write of its sequence number. The
+ * consumer drains the ring in batches, calling {@link MetricsSink#flush()} on each sink
+ * after every batch. When the ring is full, measurements are dropped and counted rather
+ * than blocking the caller.
+ * <br>
+ */
+public final class AsyncMetricsSink implements MetricsSink, AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(AsyncMetricsSink.class);
+    private static final Kind[] KINDS = Kind.values();
+    /**
+     * The write position once closed, which makes every writer find the ring full.
+     */
+    private static final long CLOSED = Long.MAX_VALUE;
+
+    private final MetricsSink[] sinks;
+    private final int mask;
+    private final int batchSize;
+    private final long idleNanos;
+    /**
+     * The sequence of each slot: equal to the position a writer may claim it at, one past
+     * that once written, and one capacity further once consumed.
+     */
+    private final AtomicLongArray sequences;
+    private final String[] groups;
+    private final String[] names;
+    private final byte[] kinds;
+    private final long[] values;
+    private final AtomicLong writePosition = new AtomicLong();
+    /**
+     * Only touched by the consumer.
+     */
+    private long readPosition = 0;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong delivered = new AtomicLong();
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    private AsyncMetricsSink(BuilderImpl builder) {
+        this.sinks = builder.sinks.toArray(new MetricsSink[0]);
+        this.mask = builder.capacity - 1;
+        this.batchSize = builder.batchSize;
+        this.idleNanos = builder.idleNanos;
+        this.sequences = new AtomicLongArray(builder.capacity);
+        for (int i = 0; i < builder.capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.groups = new String[builder.capacity];
+        this.names = new String[builder.capacity];
+        this.kinds = new byte[builder.capacity];
+        this.values = new long[builder.capacity];
+        this.consumer = new Thread(this::consume, "gwf-metrics-sink");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Queues the measurement, or drops it if the ring is full or the sink is closed.
+     */
+    @Override
+    public void record(String group, String name, Kind kind, long value) {
+        if (!running) {
+            dropped.increment();
+            return;
+        }
+        long position = writePosition.get();
+        int slot;
+        while (true) {
+            slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (0 == difference) {
+                if (writePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = writePosition.get();
+            } else if (difference < 0) {
+                // The consumer has not freed the slot yet: the ring is full
+                dropped.increment();
+                return;
+            } else {
+                position = writePosition.get();
+            }
+        }
+        groups[slot] = group;
+        names[slot] = name;
+        kinds[slot] = (byte) kind.ordinal();
+        values[slot] = value;
+        sequences.lazySet(slot, position + 1);
+    }
+
+    private void consume() {
+        while (running) {
+            if (0 == drain()) {
+                LockSupport.parkNanos(this, idleNanos);
+            }
+        }
+        while (drain() > 0) {
+            // deliver what was queued before closing
+        }
+    }
+
+    /**
+     * Delivers up to a batch of measurements.
+     * @return how many were delivered
+     */
+    private int drain() {
+        int count = 0;
+        while (count < batchSize) {
+            int slot = (int) readPosition & mask;
+            if (sequences.get(slot) != readPosition + 1) {
+                break;
+            }
+            String group = groups[slot];
+            String name = names[slot];
+            Kind kind = KINDS[kinds[slot]];
+            long value = values[slot];
+            groups[slot] = null;
+            names[slot] = null;
+            sequences.lazySet(slot, readPosition + mask + 1);
+            readPosition++;
+            count++;
+            for (MetricsSink sink : sinks) {
+                try {
+                    sink.record(group, name, kind, value);
+                } catch (RuntimeException e) {
+                    LOG.error("Metrics sink exception", e);
+                }
+            }
+        }
+        if (count > 0) {
+            for (MetricsSink sink : sinks) {
+                try {
+                    sink.flush();
+                } catch (RuntimeException e) {
+                    LOG.error("Metrics sink exception", e);
+                }
+            }
+            delivered.addAndGet(count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the measurements dropped because the ring was full or the sink closed
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the measurements handed to the sinks so far
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Stops accepting measurements, delivers those already queued and waits for the
+     * consumer thread to end. Measurements queued while the consumer was finishing are
+     * counted as dropped.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long claimed = writePosition.getAndSet(CLOSED);
+        if (CLOSED != claimed) {
+            // Writers that got past the running check claimed slots the consumer never read
+            dropped.add(claimed - readPosition);
+        }
+    }
+
+    public static Builder builder() {
+        return new BuilderImpl();
+    }
+
+    public static interface Builder {
+        /**
+         * Deliver to the sink; may be called more than once.
+         * @param sink
+         * @return
+         */
+        Builder to(MetricsSink sink);
+
+        /**
+         * The number of measurements the ring holds, rounded up to a power of two.<br><br>
+         * <i>Default: 8192</i>
+         * @param capacity
+         * @return
+         */
+        Builder capacity(int capacity);
+
+        /**
+         * The most measurements delivered between two flushes.<br><br>
+         * <i>Default: 1024</i>
+         * @param batchSize
+         * @return
+         */
+        Builder batchSize(int batchSize);
+
+        /**
+         * How long the consumer sleeps when the ring is empty, which bounds how late a
+         * measurement is delivered.<br><br>
+         * <i>Default: 100 milliseconds</i>
+         * @param wait
+         * @param unit
+         * @return
+         */
+        Builder idleWait(long wait, TimeUnit unit);
+
+        /**
+         * Builds the sink and starts its consumer thread.
+         * @return
+         */
+        AsyncMetricsSink build();
+    }
+
+    private static class BuilderImpl implements Builder {
+        private final List<MetricsSink> sinks = new ArrayList<>();
+        private int capacity = 8192;
+        private int batchSize = 1024;
+        private long idleNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+        @Override
+        public Builder to(MetricsSink sink) {
+            sinks.add(Objects.requireNonNull(sink));
+            return this;
+        }
+
+        @Override
+        public Builder capacity(int capacity) {
+            if (capacity <= 0 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("capacity must be a positive number up to 2^30");
+            }
+            this.capacity = capacity == 1 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+            return this;
+        }
+
+        @Override
+        public Builder batchSize(int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batchSize must be a positive number");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        @Override
+        public Builder idleWait(long wait, TimeUnit unit) {
+            if (wait <= 0) {
+                throw new IllegalArgumentException("wait must be a positive number");
+            }
+            this.idleNanos = Objects.requireNonNull(unit).toNanos(wait);
+            return this;
+        }
+
+        @Override
+        public AsyncMetricsSink build() {
+            return new AsyncMetricsSink(this);
+        }
+    }
+}
@@ -6,35 +6,187 @@
  */
 package gwf.utils.diagnostics;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
+/**
+ * Description: Formats the matching part of the current call stack. The stack is walked
+ * only until <code>limit</code> matching frames have been found (see
+ * {@link StackFrames}), the class filter is evaluated once per class, and each frame is
+ * formatted once and reused afterwards, so repeated calls from the same places allocate
+ * little beyond the result.
+ * <br>
+ */
 public class CallStackAnalyzer {
-    private static final Predicate<StackTraceElement> isNotAnonymous = e -> e.getClassName().indexOf('$') == -1 && e.getMethodName().indexOf('$') == -1;
-    private final Predicate<StackTraceElement> fnMatchClass ;
+    private static final BiPredicate<String, String> isNotAnonymous = (className, methodName) -> className.indexOf('$') == -1 && methodName.indexOf('$') == -1;
+    private static final String SELF = CallStackAnalyzer.class.getName();
+    /**
+     * Bounds each of the caches; classes and frames beyond it are evaluated every time.
+     */
+    private static final int MAX_CACHED = 4096;
+    private final Predicate<String> fnMatchClass;
+    /**
+     * Results of {@link #fnMatchClass} by class name.
+     */
+    private final Map<String, Boolean> classMatches = new ConcurrentHashMap<>();
+    private final BiPredicate<String, String> fnMatchFrame;
     private final int limit;
     private final Function<StackTraceElement, String> fnFormat;
     private final String join;
+    private final ThreadLocal<StringBuilder> buffer = ThreadLocal.withInitial(StringBuilder::new);
+    private final ThreadLocal<FrameBuffer> frameBuffer = ThreadLocal.withInitial(FrameBuffer::new);
     
-    private CallStackAnalyzer(Predicate<StackTraceElement> matchClass, int limit, String join, Function<StackTraceElement, String> fnFormat) {
-        fnMatchClass = matchClass.and(e -> !e.getClassName().equals(this.getClass().getCanonicalName())); // Filter me out
+    private CallStackAnalyzer(Predicate<String> matchClass, int limit, String join, Function<StackTraceElement, String> fnFormat) {
+        fnMatchClass = matchClass;
+        fnMatchFrame = isNotAnonymous.and((className, methodName) -> !className.equals(SELF) && matchesClass(className)); // Filter me out
         this.limit = limit;
         this.join = join;
-        this.fnFormat = fnFormat;
+        this.fnFormat = StackFrames.cached(fnFormat, MAX_CACHED);
     }
     
     public void sendTo(Consumer<String> fnProcess) {
-        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
-        String callStack = Arrays.stream(stack)
-                .filter(isNotAnonymous.and(fnMatchClass))
-                .limit(limit)
-                .map(fnFormat)
-                .collect(Collectors.joining(join));
-        fnProcess.accept(callStack);
+        StringBuilder sb = buffer.get();
+        sb.setLength(0);
+        appendTo(sb);
+        fnProcess.accept(sb.toString());
+    }
+    
+    /**
+     * Appends the call stack to the builder, which may be reused between calls.
+     * @param sb
+     * @return sb
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        Emitter emitter = new Emitter(sb);
+        StackFrames.walk(0, fnMatchFrame, limit, emitter);
+        return sb;
+    }
+    
+    /**
+     * Appends the call stack to the output.
+     * @param out
+     * @throws IOException the first exception thrown by the output
+     */
+    public void appendTo(Appendable out) throws IOException {
+        Emitter emitter = new Emitter(out);
+        StackFrames.walk(0, fnMatchFrame, limit, emitter);
+        if (null != emitter.failure) {
+            throw emitter.failure;
+        }
+    }
+    
+    /**
+     * Records the call stack in the profile, cut to the analyzer's limit.
+     * @param profile
+     */
+    public void recordTo(StackProfile profile) {
+        recordTo(profile, null);
+    }
+    
+    /**
+     * Records the call stack in the profile below an extra outermost frame, such as the
+     * name of the event or operation, so that one profile can be split by it.
+     * @param profile
+     * @param root the extra frame, or null for none
+     */
+    public void recordTo(StackProfile profile, String root) {
+        FrameBuffer frames = frameBuffer.get();
+        int depth = Math.min(limit, null == root ? profile.getMaxDepth() : profile.getMaxDepth() - 1);
+        frames.clear(depth + 1);
+        StackFrames.walk(0, fnMatchFrame, depth, frames);
+        if (null != root) {
+            frames.add(root);
+        }
+        profile.record(frames.frames, frames.length);
+    }
+    
+    /**
+     * Counts one occurrence of the call stack, as formatted by {@link #sendTo(Consumer)},
+     * in the {@link Metrics} sinks; with a limit of 1, this counts calls per call site.
+     * Does nothing while no sink is added.
+     * @param group the metrics group
+     */
+    public void publish(String group) {
+        if (Metrics.isEnabled()) {
+            StringBuilder sb = buffer.get();
+            sb.setLength(0);
+            appendTo(sb);
+            Metrics.publish(group, sb.toString(), MetricsSink.Kind.COUNTER, 1);
+        }
+    }
+    
+    private boolean matchesClass(String className) {
+        Boolean matches = classMatches.get(className);
+        if (null == matches) {
+            matches = fnMatchClass.test(className);
+            if (classMatches.size() < MAX_CACHED) {
+                classMatches.put(className, matches);
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Collects formatted frames for {@link StackProfile#record(String[], int)}, reused per
+     * thread.
+     */
+    private final class FrameBuffer implements Consumer<StackTraceElement> {
+        private String[] frames = new String[16];
+        private int length = 0;
+        
+        private void clear(int capacity) {
+            if (frames.length < capacity) {
+                frames = new String[capacity];
+            } else {
+                Arrays.fill(frames, 0, length, null);
+            }
+            length = 0;
+        }
+        
+        private void add(String frame) {
+            frames[length++] = frame;
+        }
+        
+        @Override
+        public void accept(StackTraceElement e) {
+            add(fnFormat.apply(e));
+        }
+    }
+    
+    /**
+     * Appends each frame it receives, joined.
+     */
+    private final class Emitter implements Consumer<StackTraceElement> {
+        private final Appendable out;
+        private boolean first = true;
+        private IOException failure = null;
+        
+        private Emitter(Appendable out) {
+            this.out = out;
+        }
+        
+        @Override
+        public void accept(StackTraceElement e) {
+            if (null != failure) {
+                return;
+            }
+            try {
+                if (!first) {
+                    out.append(join);
+                }
+                out.append(fnFormat.apply(e));
+                first = false;
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
     }
     
     public static Builder builder() {
@@ -64,7 +216,8 @@ public class CallStackAnalyzer {
          */
         Builder joinWith(String join);
         /**
-         * A formatter that is applied to each stack element.<br><br>
+         * A formatter that is applied to each stack element. Its result is cached per
+         * element, so it should not depend on anything else.<br><br>
          * <i>Default: <code>e -> e.getClassName() + "." + e.getMethodName() + "(...)[" + e.getLineNumber() + "]"</code></i>
          * @param fnFormat
          * @return
@@ -98,12 +251,12 @@ public class CallStackAnalyzer {
         }
         @Override
         public Builder formatWith(Function<StackTraceElement,String> fnFormat) {
-            this.fnFormat = fnFormat;
+            this.fnFormat = Objects.requireNonNull(fnFormat);
             return this;
         }
         @Override
         public CallStackAnalyzer build() {
-            return new CallStackAnalyzer(ste -> fnMatchClass.test(ste.getClassName()), limit, join, fnFormat);
+            return new CallStackAnalyzer(fnMatchClass, limit, join, fnFormat);
         }
     }
 }
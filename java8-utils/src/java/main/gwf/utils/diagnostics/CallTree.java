@@ -0,0 +1,149 @@
+package gwf.utils.diagnostics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description: A merged {@link Perf} call tree: one node per path of nested timers, with
+ * the number of runs and the time spent in that path, in nanoseconds. The time of a node
+ * includes its children's; {@link #getSelf()} is the part not accounted for by any
+ * child timer.<br>
+ * <br>
+ * The root has no id and no runs of its own; its children are the outermost timers.
+ * Children are ordered by total time, largest first.
+ * <br>
+ */
+public final class CallTree {
+    private final String id;
+    private long count = 0;
+    private long total = 0;
+    private final Map<String, CallTree> children = new LinkedHashMap<>();
+    private List<CallTree> sorted = null;
+
+    CallTree(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the timer id, or null for the root
+     */
+    public String getId() {
+        return id;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the time spent in this path, including the children; for the root, the
+     *         total of the outermost timers
+     */
+    public long getTotal() {
+        if (null == id) {
+            long sum = 0;
+            for (CallTree child : children.values()) {
+                sum += child.total;
+            }
+            return sum;
+        }
+        return total;
+    }
+
+    /**
+     * @return the time spent in this path outside of any child timer
+     */
+    public long getSelf() {
+        long inChildren = 0;
+        for (CallTree child : children.values()) {
+            inChildren += child.total;
+        }
+        return Math.max(0, getTotal() - inChildren);
+    }
+
+    public List<CallTree> getChildren() {
+        if (null == sorted) {
+            List<CallTree> list = new ArrayList<>(children.values());
+            list.sort((a, b) -> Long.compare(b.total, a.total));
+            sorted = Collections.unmodifiableList(list);
+        }
+        return sorted;
+    }
+
+    CallTree child(String childId) {
+        sorted = null;
+        return children.computeIfAbsent(childId, CallTree::new);
+    }
+
+    void add(long runs, long nanos) {
+        count += runs;
+        total += nanos;
+    }
+
+    void clear() {
+        sorted = null;
+        children.clear();
+    }
+
+    void mergeInto(CallTree target) {
+        for (CallTree child : children.values()) {
+            CallTree merged = target.child(child.id);
+            merged.add(child.count, child.total);
+            child.mergeInto(merged);
+        }
+    }
+
+    /**
+     * Writes one line per path, <code>outer;...;inner self</code>, with the self time in
+     * microseconds: the collapsed-stack format of flame graph tools.
+     * @param out
+     * @throws IOException
+     */
+    public void writeCollapsed(Appendable out) throws IOException {
+        writeCollapsed(out, new StringBuilder());
+    }
+
+    private void writeCollapsed(Appendable out, StringBuilder path) throws IOException {
+        for (CallTree child : getChildren()) {
+            int length = path.length();
+            if (length > 0) {
+                path.append(';');
+            }
+            path.append(child.id.replace(';', ','));
+            long self = child.getSelf() / 1_000;
+            if (self > 0) {
+                out.append(path).append(' ').append(Long.toString(self)).append('\n');
+            }
+            child.writeCollapsed(out, path);
+            path.setLength(length);
+        }
+    }
+
+    /**
+     * @return the tree, one indented line per path, with each path's share of its parent
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        render(sb, "");
+        return sb.toString();
+    }
+
+    private void render(StringBuilder sb, String indent) {
+        long parentTotal = getTotal();
+        for (CallTree child : getChildren()) {
+            sb.append(indent).append(child.id)
+                    .append(": count=").append(child.count)
+                    .append(String.format(", total=%.3fms", child.total / 1e6));
+            if (parentTotal > 0) {
+                sb.append(String.format(" (%.1f%%)", 100.0 * child.total / parentTotal));
+            }
+            sb.append(String.format(", self=%.3fms", child.getSelf() / 1e6)).append('\n');
+            child.render(sb, indent + "  ");
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Description: Exposes the metrics of a {@link MetricsRegistry} as MBeans, one per
+ * metric, named <code>domain:type="group",name="name"</code> for timers and
+ * <code>domain:type="group",name="name",kind=counter</code> for counters, so that a
+ * timer and a counter of the same name do not clash. Timers have the attributes Count,
+ * Mean, P50, P90, P99, P999 and Max, in milliseconds; counters have Count.<br>
+ * <br>
+ * Metrics recorded after the exporter was built are registered as they appear, on a
+ * daemon thread of the exporter, so that the recording thread never waits on the MBean
+ * server.<br>
+ * <br>
+ * Attributes are read from the registry when asked for, so the exporter adds nothing to
+ * recording.
+ * <br>
+ */
+public final class JmxExporter implements AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(JmxExporter.class);
+    private static final String[] TIMER_ATTRIBUTES = { "Count", "Mean", "P50", "P90", "P99", "P999", "Max" };
+    private static final MBeanInfo TIMER_INFO = info("timer", TIMER_ATTRIBUTES);
+    private static final MBeanInfo COUNTER_INFO = info("counter", new String[] { "Count" });
+
+    private final MetricsRegistry registry;
+    private final MBeanServer server;
+    private final String domain;
+    private final Set<ObjectName> registered = ConcurrentHashMap.newKeySet();
+    /**
+     * Registers the metrics that appear after the exporter was built.
+     */
+    private final ExecutorService registrar = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "gwf-jmx-exporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final MetricsRegistry.NewMetricListener listener = this::queue;
+    /**
+     * Guarded by this.
+     */
+    private boolean closed = false;
+
+    private JmxExporter(BuilderImpl builder) {
+        this.registry = builder.registry;
+        this.server = builder.server;
+        this.domain = builder.domain;
+        registry.addNewMetricListener(listener);
+        for (Map.Entry<String, Map<String, LatencyHistogram.Snapshot>> group : registry.getTimers().entrySet()) {
+            for (String name : group.getValue().keySet()) {
+                register(group.getKey(), name, MetricsSink.Kind.TIMER);
+            }
+        }
+        for (Map.Entry<String, Map<String, Long>> group : registry.getCounters().entrySet()) {
+            for (String name : group.getValue().keySet()) {
+                register(group.getKey(), name, MetricsSink.Kind.COUNTER);
+            }
+        }
+    }
+
+    /**
+     * Called on the recording thread when a metric appears.
+     */
+    private void queue(String group, String name, MetricsSink.Kind kind) {
+        try {
+            registrar.execute(() -> register(group, name, kind));
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    private synchronized void register(String group, String name, MetricsSink.Kind kind) {
+        if (closed) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(domain + ":type=" + ObjectName.quote(group) + ",name=" + ObjectName.quote(name)
+                    + (MetricsSink.Kind.COUNTER == kind ? ",kind=counter" : ""));
+            if (!registered.contains(objectName)) {
+                server.registerMBean(new MetricBean(registry, group, name, kind), objectName);
+                // only names this exporter registered itself are unregistered on close
+                registered.add(objectName);
+            }
+        } catch (InstanceAlreadyExistsException e) {
+            LOG.warn("MBean already registered for metric {} {}", group, name);
+        } catch (JMException e) {
+            LOG.error("Could not register MBean for metric " + group + " " + name, e);
+        }
+    }
+
+    /**
+     * @return the names of the MBeans registered so far
+     */
+    public Set<ObjectName> getObjectNames() {
+        return Collections.unmodifiableSet(registered);
+    }
+
+    /**
+     * Unregisters every MBean and stops registering new metrics.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        registry.removeNewMetricListener(listener);
+        registrar.shutdown();
+        for (ObjectName objectName : registered) {
+            try {
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                LOG.error("Could not unregister MBean " + objectName, e);
+            }
+        }
+        registered.clear();
+    }
+
+    private static MBeanInfo info(String kind, String[] attributes) {
+        MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            boolean count = "Count".equals(attributes[i]);
+            infos[i] = new MBeanAttributeInfo(attributes[i], count ? "long" : "double",
+                    count ? "Number of measurements" : attributes[i] + " in milliseconds", true, false, false);
+        }
+        return new MBeanInfo(MetricBean.class.getName(), "A " + kind + " of a MetricsRegistry", infos, null, null, null);
+    }
+
+    /**
+     * One metric, read from the registry on every access.
+     */
+    private static final class MetricBean implements DynamicMBean {
+        private final MetricsRegistry registry;
+        private final String group;
+        private final String name;
+        private final MetricsSink.Kind kind;
+
+        private MetricBean(MetricsRegistry registry, String group, String name, MetricsSink.Kind kind) {
+            this.registry = registry;
+            this.group = group;
+            this.name = name;
+            this.kind = kind;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (MetricsSink.Kind.COUNTER == kind) {
+                if ("Count".equals(attribute)) {
+                    return registry.getCounter(group, name);
+                }
+                throw new AttributeNotFoundException(attribute);
+            }
+            return timerAttribute(registry.getTimer(group, name), attribute);
+        }
+
+        private static Object timerAttribute(LatencyHistogram.Snapshot snapshot, String attribute) throws AttributeNotFoundException {
+            switch (attribute) {
+            case "Count":
+                return snapshot.getCount();
+            case "Mean":
+                return millis(snapshot.getMean());
+            case "P50":
+                return millis(snapshot.getP50());
+            case "P90":
+                return millis(snapshot.getP90());
+            case "P99":
+                return millis(snapshot.getP99());
+            case "P999":
+                return millis(snapshot.getP999());
+            case "Max":
+                return millis(snapshot.getMax());
+            default:
+                throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        private static double millis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            LatencyHistogram.Snapshot snapshot = MetricsSink.Kind.TIMER == kind ? registry.getTimer(group, name) : null;
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, null == snapshot ? getAttribute(attribute) : timerAttribute(snapshot, attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the interface specifies
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return MetricsSink.Kind.TIMER == kind ? TIMER_INFO : COUNTER_INFO;
+        }
+    }
+
+    public static Builder builder(MetricsRegistry registry) {
+        return new BuilderImpl(registry);
+    }
+
+    public static interface Builder {
+        /**
+         * The domain of the MBean names.<br><br>
+         * <i>Default: gwf.utils.diagnostics</i>
+         * @param domain
+         * @return
+         */
+        Builder domain(String domain);
+
+        /**
+         * <i>Default: the platform MBean server</i>
+         * @param server
+         * @return
+         */
+        Builder server(MBeanServer server);
+
+        /**
+         * Registers the MBeans of the registry's metrics.
+         * @return
+         */
+        JmxExporter build();
+    }
+
+    private static class BuilderImpl implements Builder {
+        private final MetricsRegistry registry;
+        private String domain = "gwf.utils.diagnostics";
+        private MBeanServer server = null;
+
+        private BuilderImpl(MetricsRegistry registry) {
+            this.registry = Objects.requireNonNull(registry);
+        }
+
+        @Override
+        public Builder domain(String domain) {
+            this.domain = Objects.requireNonNull(domain);
+            return this;
+        }
+
+        @Override
+        public Builder server(MBeanServer server) {
+            this.server = Objects.requireNonNull(server);
+            return this;
+        }
+
+        @Override
+        public JmxExporter build() {
+            if (null == server) {
+                server = ManagementFactory.getPlatformMBeanServer();
+            }
+            return new JmxExporter(this);
+        }
+    }
+}
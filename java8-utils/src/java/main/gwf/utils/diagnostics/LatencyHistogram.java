@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Description: A lock-free histogram of durations in nanoseconds, cheap enough to record
+ * on every call of a hot path. Recording is a few atomic increments.
+ * <br>
+ * <br>
+ * Buckets are log-linear: each power of two is split into 8 equal buckets, so a
+ * reported percentile is within 12.5% of the true value, across the whole range of
+ * <code>long</code>, in 4 KB of counters.
+ * <br>
+ * <br>
+ * Like a <code>LongAdder</code>, the counts start in a single array and are striped
+ * once threads collide on it: each thread then counts in the stripe of its id, and
+ * snapshots add the stripes up. A stripe is another 4 KB, allocated the first time a
+ * thread records into it.
+ * <br>
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+    /**
+     * The counts until threads collide on them.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * The counts by thread, once a thread failed to update {@link #counts}; null before.
+     */
+    private volatile AtomicReferenceArray<AtomicLongArray> stripes;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one duration. Negative durations are recorded as 0.
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        int bucket = bucketOf(value);
+        AtomicReferenceArray<AtomicLongArray> s = stripes;
+        if (null == s) {
+            long count = counts.get(bucket);
+            if (!counts.compareAndSet(bucket, count, count + 1)) {
+                stripe(stripes()).incrementAndGet(bucket);
+            }
+        } else {
+            stripe(s).incrementAndGet(bucket);
+        }
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    private AtomicReferenceArray<AtomicLongArray> stripes() {
+        AtomicReferenceArray<AtomicLongArray> s = stripes;
+        if (null == s) {
+            synchronized (this) {
+                s = stripes;
+                if (null == s) {
+                    stripes = s = new AtomicReferenceArray<>(STRIPES);
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @return the stripe of the current thread, allocated on first use
+     */
+    private static AtomicLongArray stripe(AtomicReferenceArray<AtomicLongArray> s) {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        int index = (int) (id >>> 32) & (STRIPES - 1);
+        AtomicLongArray stripe = s.get(index);
+        if (null == stripe) {
+            s.compareAndSet(index, null, new AtomicLongArray(BUCKETS));
+            stripe = s.get(index);
+        }
+        return stripe;
+    }
+
+    /**
+     * @return a copy of the counts so far
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        addStripes(copy, false);
+        return new Snapshot(copy, sum.sum(), max.get());
+    }
+
+    /**
+     * Like {@link #snapshot()}, but also starts the histogram over, for reports per
+     * interval. Durations recorded concurrently land in either this snapshot or the next,
+     * never in neither.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.getAndSet(i, 0);
+        }
+        addStripes(copy, true);
+        return new Snapshot(copy, sum.sumThenReset(), max.getAndSet(0));
+    }
+
+    private void addStripes(long[] copy, boolean reset) {
+        AtomicReferenceArray<AtomicLongArray> s = stripes;
+        for (int j = 0; null != s && j < STRIPES; j++) {
+            AtomicLongArray stripe = s.get(j);
+            for (int i = 0; null != stripe && i < BUCKETS; i++) {
+                copy[i] += reset ? stripe.getAndSet(i, 0) : stripe.get(i);
+            }
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the largest value that falls in the bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) - 1);
+    }
+
+    /**
+     * Description: An immutable copy of a {@link LatencyHistogram}. All values are in
+     * nanoseconds.
+     * <br>
+     */
+    public static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0);
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            long n = 0;
+            for (long c : counts) {
+                n += c;
+            }
+            this.count = n;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public static Snapshot empty() {
+            return EMPTY;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return 0 == count ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99
+         * @return the value below which the given fraction of the durations fall, or 0 if
+         *         nothing was recorded
+         * @throws IllegalArgumentException if quantile is not between 0 and 1
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (!(quantile >= 0 && quantile <= 1)) {
+                throw new IllegalArgumentException("quantile must be between 0 and 1");
+            }
+            if (0 == count) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        public long getP50() {
+            return getValueAtQuantile(0.5);
+        }
+
+        public long getP90() {
+            return getValueAtQuantile(0.9);
+        }
+
+        public long getP99() {
+            return getValueAtQuantile(0.99);
+        }
+
+        public long getP999() {
+            return getValueAtQuantile(0.999);
+        }
+
+        /**
+         * @return a snapshot with the counts of both
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] merged = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(merged, sum + other.sum, Math.max(max, other.max));
+        }
+
+        /**
+         * @return the durations recorded since the earlier snapshot of the same histogram.
+         *         The maximum is that of the later snapshot, capped at the bucket of the
+         *         largest duration since the earlier one.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] delta = new long[BUCKETS];
+            int highest = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                delta[i] = Math.max(0, counts[i] - earlier.counts[i]);
+                if (delta[i] > 0) {
+                    highest = i;
+                }
+            }
+            long deltaMax = highest < 0 ? 0 : Math.min(max, upperBoundOf(highest));
+            return new Snapshot(delta, Math.max(0, sum - earlier.sum), deltaMax);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                    + ", mean=" + millis((long) getMean())
+                    + ", p50=" + millis(getP50())
+                    + ", p90=" + millis(getP90())
+                    + ", p99=" + millis(getP99())
+                    + ", p999=" + millis(getP999())
+                    + ", max=" + millis(max);
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.3fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Description: Where {@link Perf}, {@link CallStackAnalyzer} and
+ * {@link gwf.utils.listener.ListenerManager ListenerManager} publish their measurements.
+ * Nothing is published until a {@link MetricsSink} is added; until then publishing costs
+ * a volatile read.<br>
+ * <br>
+ * A typical setup aggregates asynchronously and exports the aggregate:<br>
+ * <code>MetricsRegistry registry = new MetricsRegistry();<br>
+ * Metrics.addSink(AsyncMetricsSink.builder().to(registry).build());<br>
+ * JmxExporter.builder(registry).build();</code>
+ * <br>
+ */
+public final class Metrics {
+    private static final Logger LOG = LogManager.getLogger(Metrics.class);
+    private static final MetricsSink[] NONE = new MetricsSink[0];
+    /**
+     * Replaced, never modified. Writes are guarded by {@link Metrics}.
+     */
+    private static volatile MetricsSink[] sinks = NONE;
+
+    private Metrics() {
+
+    }
+
+    public static synchronized void addSink(MetricsSink sink) {
+        Objects.requireNonNull(sink);
+        MetricsSink[] added = Arrays.copyOf(sinks, sinks.length + 1);
+        added[sinks.length] = sink;
+        sinks = added;
+    }
+
+    /**
+     * @param sink
+     * @return whether the sink had been added
+     */
+    public static synchronized boolean removeSink(MetricsSink sink) {
+        for (int i = 0; i < sinks.length; i++) {
+            if (sinks[i] == sink) {
+                MetricsSink[] removed = new MetricsSink[sinks.length - 1];
+                System.arraycopy(sinks, 0, removed, 0, i);
+                System.arraycopy(sinks, i + 1, removed, i, removed.length - i);
+                sinks = removed;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether any sink was added; check before building names to publish
+     */
+    public static boolean isEnabled() {
+        return sinks.length > 0;
+    }
+
+    /**
+     * Hands the measurement to every sink. An exception thrown by a sink is logged and
+     * does not reach the caller.
+     * @param group
+     * @param name
+     * @param kind
+     * @param value
+     */
+    public static void publish(String group, String name, MetricsSink.Kind kind, long value) {
+        for (MetricsSink sink : sinks) {
+            try {
+                sink.record(group, name, kind, value);
+            } catch (RuntimeException e) {
+                LOG.error("Metrics sink exception", e);
+            }
+        }
+    }
+}
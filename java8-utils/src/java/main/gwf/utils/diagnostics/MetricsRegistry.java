@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Description: A sink that aggregates measurements in memory: a
+ * {@link LatencyHistogram} per timer and a sum per counter, by group and name. This is
+ * what {@link JmxExporter} and {@link PrometheusExporter} export.<br>
+ * <br>
+ * Recording looks the metric up in two hash maps and does not allocate once the metric
+ * exists. The number of metrics is bounded, since names such as call stacks may be
+ * unbounded; measurements of further names are dropped and counted.
+ * <br>
+ */
+public final class MetricsRegistry implements MetricsSink {
+    private static final int DEFAULT_MAX_METRICS = 10_000;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> counters = new ConcurrentHashMap<>();
+    private final int maxMetrics;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final CopyOnWriteArrayList<NewMetricListener> newMetricListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Told of each metric the first time it is recorded.
+     */
+    @FunctionalInterface
+    interface NewMetricListener {
+        void created(String group, String name, Kind kind);
+    }
+
+    public MetricsRegistry() {
+        this(DEFAULT_MAX_METRICS);
+    }
+
+    /**
+     * @param maxMetrics the number of timers and counters to keep
+     * @throws IllegalArgumentException if maxMetrics is not positive
+     */
+    public MetricsRegistry(int maxMetrics) {
+        if (maxMetrics <= 0) {
+            throw new IllegalArgumentException("maxMetrics must be a positive number");
+        }
+        this.maxMetrics = maxMetrics;
+    }
+
+    @Override
+    public void record(String group, String name, Kind kind, long value) {
+        if (Kind.TIMER == kind) {
+            LatencyHistogram histogram = metric(timers, group, name, kind, LatencyHistogram::new);
+            if (null != histogram) {
+                histogram.record(value);
+            }
+        } else {
+            LongAdder counter = metric(counters, group, name, kind, LongAdder::new);
+            if (null != counter) {
+                counter.add(value);
+            }
+        }
+    }
+
+    /**
+     * @return the metric, or null if it is new and the registry is full
+     */
+    private <M> M metric(ConcurrentMap<String, ConcurrentMap<String, M>> metrics, String group, String name, Kind kind,
+            Supplier<M> create) {
+        ConcurrentMap<String, M> byName = metrics.get(group);
+        if (null == byName) {
+            byName = metrics.computeIfAbsent(group, g -> new ConcurrentHashMap<>());
+        }
+        M metric = byName.get(name);
+        if (null != metric) {
+            return metric;
+        }
+        if (size.get() >= maxMetrics) {
+            dropped.increment();
+            return null;
+        }
+        boolean[] created = new boolean[1];
+        metric = byName.computeIfAbsent(name, n -> {
+            created[0] = true;
+            size.incrementAndGet();
+            return create.get();
+        });
+        if (created[0]) {
+            for (NewMetricListener listener : newMetricListeners) {
+                listener.created(group, name, kind);
+            }
+        }
+        return metric;
+    }
+
+    /**
+     * @return the timers so far, by group and name, sorted
+     */
+    public Map<String, Map<String, LatencyHistogram.Snapshot>> getTimers() {
+        Map<String, Map<String, LatencyHistogram.Snapshot>> result = new TreeMap<>();
+        timers.forEach((group, byName) -> {
+            Map<String, LatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+            byName.forEach((name, histogram) -> snapshots.put(name, histogram.snapshot()));
+            result.put(group, Collections.unmodifiableMap(snapshots));
+        });
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return the counters so far, by group and name, sorted
+     */
+    public Map<String, Map<String, Long>> getCounters() {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        counters.forEach((group, byName) -> {
+            Map<String, Long> sums = new TreeMap<>();
+            byName.forEach((name, counter) -> sums.put(name, counter.sum()));
+            result.put(group, Collections.unmodifiableMap(sums));
+        });
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return the timer's durations, or an empty snapshot if it was never recorded
+     */
+    public LatencyHistogram.Snapshot getTimer(String group, String name) {
+        LatencyHistogram histogram = find(timers, group, name);
+        return null == histogram ? LatencyHistogram.Snapshot.empty() : histogram.snapshot();
+    }
+
+    /**
+     * @return the counter's sum, or 0 if it was never recorded
+     */
+    public long getCounter(String group, String name) {
+        LongAdder counter = find(counters, group, name);
+        return null == counter ? 0 : counter.sum();
+    }
+
+    /**
+     * @return the measurements dropped because the registry was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private static <M> M find(ConcurrentMap<String, ConcurrentMap<String, M>> metrics, String group, String name) {
+        ConcurrentMap<String, M> byName = metrics.get(group);
+        return null == byName ? null : byName.get(name);
+    }
+
+    void addNewMetricListener(NewMetricListener listener) {
+        newMetricListeners.add(listener);
+    }
+
+    void removeNewMetricListener(NewMetricListener listener) {
+        newMetricListeners.remove(listener);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+/**
+ * Description: Receives the measurements published through {@link Metrics}, such as the
+ * runs of {@link Perf} timers and the listener invocations of a
+ * {@link gwf.utils.listener.ListenerManager ListenerManager}.<br>
+ * <br>
+ * A measurement is a group, such as <code>perf</code>, a name within the group, such as
+ * the timer id, a kind and a value. {@link #record(String, String, Kind, long)} is called
+ * on the measuring thread, so it should neither block nor format; wrap slow sinks in an
+ * {@link AsyncMetricsSink}.
+ * <br>
+ */
+@FunctionalInterface
+public interface MetricsSink {
+    public static enum Kind {
+        /**
+         * One duration, in nanoseconds.
+         */
+        TIMER,
+        /**
+         * An increment of a count.
+         */
+        COUNTER
+    }
+
+    void record(String group, String name, Kind kind, long value);
+
+    /**
+     * Called after a batch of measurements has been recorded, e.g. by
+     * {@link AsyncMetricsSink}.
+     */
+    default void flush() {
+
+    }
+}
@@ -1,62 +1,393 @@
 package gwf.utils.diagnostics;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/**
+ * Description: Times operations by id, from any number of threads at once.<br>
+ * <br>
+ * <code>try (Perf.Timer t = Perf.start("load")) { ... }</code> times the block;
+ * {@link #start(String)} and {@link #stop(String)} may also be called separately on the
+ * same thread. The no-argument forms use the calling class and method as id; the caller
+ * is found by walking the stack to the first frame outside Perf on every call, which
+ * only saves building the id again. The fast path is a pre-registered {@link PerfKey},
+ * which involves no stack walk nor id lookup.<br>
+ * <br>
+ * Durations are measured with <code>System.nanoTime()</code> and recorded in a
+ * {@link LatencyHistogram} per id, which gives counts, mean, maximum and percentiles
+ * through {@link #getStats()}. Nothing is logged per run; instead {@link #report()}
+ * logs a summary of each id, and {@link #reportEvery(long, TimeUnit)} does so on a
+ * schedule.<br>
+ * <br>
+ * Once enabled with {@link #setCallTrees(boolean)}, timers started while another is
+ * running on the same thread are nested within it, and each thread aggregates its runs
+ * into a call tree of its own, so that recording never contends across threads. Runs of
+ * timers closed on another thread than the one that started them are not counted.
+ * {@link #getCallTree()} merges the trees of all threads into one {@link CallTree}, with
+ * the inclusive and exclusive time and the runs of each path.
+ * <br>
+ * <br>
+ * While a {@link MetricsSink} is added to {@link Metrics}, every run is also published
+ * as a timer of the group {@value #METRICS_GROUP}, named by id.
+ * <br>
+ */
 public class Perf {
     private static final Logger LOG = LogManager.getLogger(Perf.class);
     private static final Perf instance = new Perf();
-    private final Map<String,Long> runTime = new HashMap<>();
-    private final Map<String,Integer> runCount = new HashMap<>();
-    private long minDuration = 1;
+    private static final String SELF = Perf.class.getName();
+    private static final BiPredicate<String, String> isCaller = (className, methodName) ->
+            !(className.startsWith(SELF) && (className.length() == SELF.length() || className.charAt(SELF.length()) == '$'));
+    /**
+     * The timers started by each thread and not yet stopped, by id.
+     */
+    private final ThreadLocal<Map<String, Timer>> running = ThreadLocal.withInitial(HashMap::new);
+    /**
+     * The keys of the no-argument forms, by calling frame.
+     */
+    private final Map<StackTraceElement, PerfKey> callSites = new ConcurrentHashMap<>();
+    private static final int MAX_CALL_SITES = 4096;
+    private static final PerfKey UNKNOWN = PerfKey.of("unknown");
+    /**
+     * The {@link Metrics} group of the runs.
+     */
+    public static final String METRICS_GROUP = "perf";
+    private volatile boolean callTrees = false;
+    private final ThreadLocal<ThreadCallTree> threadTree = ThreadLocal.withInitial(this::newThreadTree);
+    /**
+     * The trees of threads that may still be running. Trees of ended threads are merged
+     * into {@link #retired} whenever a tree is added or the trees are merged.
+     */
+    private final Queue<ThreadCallTree> threadTrees = new ConcurrentLinkedQueue<>();
+    /**
+     * The merged trees of threads that have ended. Guarded by {@link #instance}.
+     */
+    private final CallTree retired = new CallTree(null);
+    /**
+     * The snapshots taken by the last report, by id. Guarded by {@link #instance}.
+     */
+    private final Map<String, LatencyHistogram.Snapshot> reported = new HashMap<>();
+    /**
+     * Guarded by {@link #instance}.
+     */
+    private ScheduledExecutorService reporter = null;
+    private ScheduledFuture<?> reportTask = null;
 
     private Perf() {
-        
+
+    }
+
+    /**
+     * Starts timing the calling method on this thread. Walks the stack on every call; time
+     * hot code with {@link #start(PerfKey)} instead.
+     * @return
+     */
+    public static Timer start() {
+        return track(callerKey());
+    }
+
+    /**
+     * Starts timing the id on this thread. Close the returned timer, or call
+     * {@link #stop(String)} on the same thread, to record the run.
+     * @param id
+     * @return
+     */
+    public static Timer start(String id) {
+        return track(PerfKey.of(id));
     }
-    
-    public static void start() {
-        StackTraceElement e = Thread.currentThread().getStackTrace()[2];
-        String id = e.getClassName() + "->"+e.getMethodName();
-        start(id);
+
+    /**
+     * Starts timing the key. Close the returned timer to record the run; it cannot be
+     * stopped with {@link #stop(String)}, which keeps this the cheapest way to time.
+     * @param key
+     * @return
+     */
+    public static Timer start(PerfKey key) {
+        return new Timer(key, null, enter(key), System.nanoTime());
     }
-    
-    public static void start(String id) {
-        Long current = instance.runTime.put(id, System.currentTimeMillis());
+
+    private static Timer track(PerfKey key) {
+        Map<String, Timer> timers = instance.running.get();
+        Timer current = timers.get(key.getId());
         if (null != current) {
-            LOG.info("Monitor " + id + " was restarted without a stop event");
+            LOG.info("Monitor " + key + " was restarted without a stop event");
+            current.abandon();
         }
+        Timer timer = new Timer(key, timers, enter(key), System.nanoTime());
+        timers.put(key.getId(), timer);
+        return timer;
     }
-    
+
     public static void stop() {
-        StackTraceElement e = Thread.currentThread().getStackTrace()[2];
-        String id = e.getClassName() + "->"+e.getMethodName();
-        stop(id);
+        long stop = System.nanoTime();
+        stop(callerKey().getId(), stop);
     }
-    
+
+    /**
+     * Stops the timer last started for the id on this thread.
+     * @param id
+     */
     public static void stop(String id) {
-        long stop = System.currentTimeMillis();
-        Long start = instance.runTime.get(id);
-        Integer count = instance.runCount.get(id);
-        count = null == count ? 0 : count;
-        instance.runCount.put(id, ++count);
-        if (null == start) {
+        stop(id, System.nanoTime());
+    }
+
+    private static void stop(String id, long stop) {
+        Timer timer = instance.running.get().get(id);
+        if (null == timer) {
             LOG.info("Monitor " + id + " was stopped without a start event");
         } else {
-            long duration = stop - start.longValue();
-            if (duration >= instance.minDuration) {
-                StringBuffer sb = new StringBuffer();
-                sb.append(id);
-                if (count > 1) {
-                    sb.append(" run ");
-                    sb.append(count);
+            timer.stop(stop);
+        }
+    }
+
+    /**
+     * @return the durations of every id run so far, in nanoseconds
+     */
+    public static Map<String, LatencyHistogram.Snapshot> getStats() {
+        Map<String, LatencyHistogram.Snapshot> stats = new LinkedHashMap<>();
+        for (PerfKey key : PerfKey.all()) {
+            LatencyHistogram.Snapshot snapshot = key.histogram.snapshot();
+            if (snapshot.getCount() > 0) {
+                stats.put(key.getId(), snapshot);
+            }
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * @param id
+     * @return the durations of the id in nanoseconds, or null if it has not completed a
+     *         run
+     */
+    public static LatencyHistogram.Snapshot getStats(String id) {
+        PerfKey key = PerfKey.find(id);
+        LatencyHistogram.Snapshot snapshot = null == key ? null : key.histogram.snapshot();
+        return null == snapshot || 0 == snapshot.getCount() ? null : snapshot;
+    }
+
+    /**
+     * Drops all statistics. Running timers are not affected.
+     */
+    public static void reset() {
+        synchronized (instance) {
+            for (PerfKey key : PerfKey.all()) {
+                key.histogram.snapshotAndReset();
+            }
+            instance.reported.clear();
+            instance.retired.clear();
+            for (ThreadCallTree threadTree : instance.threadTrees) {
+                threadTree.clear();
+            }
+        }
+    }
+
+    /**
+     * Whether timers are aggregated into call trees, which costs a thread-local lookup and
+     * a small allocation per timer.<br><br>
+     * <i>Default: false</i>
+     * @param enabled
+     */
+    public static void setCallTrees(boolean enabled) {
+        instance.callTrees = enabled;
+    }
+
+    /**
+     * Merges the call trees of all threads, including threads that have ended.
+     * @return
+     */
+    public static CallTree getCallTree() {
+        CallTree tree = new CallTree(null);
+        synchronized (instance) {
+            instance.retireEnded();
+            instance.retired.mergeInto(tree);
+            for (ThreadCallTree threadTree : instance.threadTrees) {
+                threadTree.mergeInto(tree);
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Logs the merged call tree.
+     */
+    public static void reportCallTree() {
+        LOG.info("Call tree:\n" + getCallTree());
+    }
+
+    /**
+     * Logs one line per id that completed runs since the last report, with the count,
+     * mean, percentiles and maximum of those runs.
+     */
+    public static void report() {
+        synchronized (instance) {
+            for (PerfKey key : PerfKey.all()) {
+                LatencyHistogram.Snapshot current = key.histogram.snapshot();
+                LatencyHistogram.Snapshot previous = instance.reported.put(key.getId(), current);
+                LatencyHistogram.Snapshot runs = null == previous ? current : current.minus(previous);
+                if (runs.getCount() > 0) {
+                    LOG.info(key + ": " + runs);
                 }
-                sb.append(" completed in ");
-                sb.append(stop - start);
-                sb.append(" ms");
-                LOG.info(sb.toString());            
+            }
+        }
+    }
+
+    /**
+     * Calls {@link #report()} every period on a daemon thread, replacing any earlier
+     * schedule. A period of 0 stops reporting.
+     * @param period
+     * @param unit
+     * @throws IllegalArgumentException if period is negative
+     */
+    public static void reportEvery(long period, TimeUnit unit) {
+        if (period < 0) {
+            throw new IllegalArgumentException("period must not be negative");
+        }
+        synchronized (instance) {
+            if (null != instance.reportTask) {
+                instance.reportTask.cancel(false);
+                instance.reportTask = null;
+            }
+            if (period > 0) {
+                if (null == instance.reporter) {
+                    instance.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "gwf-perf-report");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                instance.reportTask = instance.reporter.scheduleAtFixedRate(Perf::report, period, period, unit);
+            }
+        }
+    }
+
+    private ThreadCallTree newThreadTree() {
+        ThreadCallTree tree = new ThreadCallTree();
+        synchronized (this) {
+            retireEnded();
+            threadTrees.add(tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Merges the trees of threads that have ended into {@link #retired}. Must hold
+     * {@link #instance}.
+     */
+    private void retireEnded() {
+        for (Iterator<ThreadCallTree> it = threadTrees.iterator(); it.hasNext();) {
+            ThreadCallTree threadTree = it.next();
+            if (threadTree.isRetired()) {
+                threadTree.mergeInto(retired);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the timer's frame in this thread's call tree, or null
+     */
+    private static ThreadCallTree.Frame enter(PerfKey key) {
+        return instance.callTrees ? instance.threadTree.get().enter(key) : null;
+    }
+
+    /**
+     * Finds the calling frame, which walks the stack each time, then reuses the key built
+     * for that frame before.
+     */
+    private static PerfKey callerKey() {
+        StackTraceElement e = StackFrames.find(0, isCaller);
+        if (null == e) {
+            return UNKNOWN;
+        }
+        PerfKey key = instance.callSites.get(e);
+        if (null == key) {
+            key = PerfKey.of(e.getClassName() + "->" + e.getMethodName());
+            if (instance.callSites.size() < MAX_CALL_SITES) {
+                instance.callSites.put(e, key);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * A running timer; closing it records the run. Closing it again has no effect.
+     */
+    public static final class Timer implements AutoCloseable {
+        private final PerfKey key;
+        private final Thread owner;
+        /**
+         * The running timers of {@link #owner}, or null if the timer is not tracked; only
+         * that thread may touch it.
+         */
+        private final Map<String, Timer> timers;
+        /**
+         * The timer's frame in the call tree of the thread that started it, or null.
+         */
+        private final ThreadCallTree.Frame frame;
+        private final long start;
+        private boolean stopped = false;
+
+        private Timer(PerfKey key, Map<String, Timer> timers, ThreadCallTree.Frame frame, long start) {
+            this.key = key;
+            this.owner = null == timers ? null : Thread.currentThread();
+            this.timers = timers;
+            this.frame = frame;
+            this.start = start;
+        }
+
+        public String getId() {
+            return key.getId();
+        }
+
+        /**
+         * @return the nanoseconds since the timer was started
+         */
+        public long elapsed() {
+            return System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() {
+            stop(System.nanoTime());
+        }
+
+        /**
+         * Drops the timer without recording a run.
+         */
+        private void abandon() {
+            stopped = true;
+            if (null != frame) {
+                frame.tree.leave(frame);
+            }
+        }
+
+        private void stop(long stop) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            if (null != timers && Thread.currentThread() == owner && timers.get(key.getId()) == this) {
+                timers.remove(key.getId());
+            }
+            key.histogram.record(stop - start);
+            if (Metrics.isEnabled()) {
+                Metrics.publish(METRICS_GROUP, key.getId(), MetricsSink.Kind.TIMER, stop - start);
+            }
+            if (null != frame) {
+                frame.tree.exit(frame, stop - start);
             }
         }
     }
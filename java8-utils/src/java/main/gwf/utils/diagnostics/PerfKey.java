@@ -0,0 +1,58 @@
+package gwf.utils.diagnostics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description: A {@link Perf} id, registered once, typically in a static field:<br>
+ * <code>private static final PerfKey LOAD = PerfKey.of("load");</code><br>
+ * <br>
+ * Timing with a key instead of a String skips looking up the id's statistics, so an
+ * empty <code>try (Perf.Timer t = Perf.start(LOAD)) {}</code> costs little more than two
+ * <code>System.nanoTime()</code> calls. There is one key per id; {@link #of(String)}
+ * returns the same key for the same id.
+ * <br>
+ */
+public final class PerfKey {
+    private static final Map<String, PerfKey> keys = new ConcurrentHashMap<>();
+
+    private final String id;
+    final LatencyHistogram histogram = new LatencyHistogram();
+
+    private PerfKey(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @param id
+     * @return the key of the id
+     * @throws NullPointerException if id is <code>null</code>
+     */
+    public static PerfKey of(String id) {
+        PerfKey key = keys.get(Objects.requireNonNull(id));
+        return null == key ? keys.computeIfAbsent(id, PerfKey::new) : key;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the key of the id, or null if none was registered
+     */
+    static PerfKey find(String id) {
+        return keys.get(id);
+    }
+
+    static Collection<PerfKey> all() {
+        return Collections.unmodifiableCollection(keys.values());
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
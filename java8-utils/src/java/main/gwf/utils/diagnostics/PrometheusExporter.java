@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Description: Writes the metrics of a {@link MetricsRegistry} in the Prometheus text
+ * format, to be picked up from a file by the node exporter's textfile collector, so no
+ * server is needed.<br>
+ * <br>
+ * Each group of timers is a summary, <code>prefix_group_seconds</code>, with the
+ * quantiles 0.5, 0.9, 0.99 and 0.999; each group of counters is a counter,
+ * <code>prefix_group_total</code>. The metric name is the <code>name</code> label. Files
+ * are written to a temporary file first and moved into place, so a reader never sees a
+ * partial file.
+ * <br>
+ */
+public final class PrometheusExporter implements AutoCloseable {
+    private static final Logger LOG = LogManager.getLogger(PrometheusExporter.class);
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final MetricsRegistry registry;
+    private final String prefix;
+    /**
+     * Guarded by this.
+     */
+    private ScheduledExecutorService writer = null;
+
+    private PrometheusExporter(BuilderImpl builder) {
+        this.registry = builder.registry;
+        this.prefix = builder.prefix;
+    }
+
+    /**
+     * Writes every metric of the registry.
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(Appendable out) throws IOException {
+        for (Map.Entry<String, Map<String, LatencyHistogram.Snapshot>> group : registry.getTimers().entrySet()) {
+            String metric = metricName(group.getKey()) + "_seconds";
+            out.append("# TYPE ").append(metric).append(" summary\n");
+            for (Map.Entry<String, LatencyHistogram.Snapshot> timer : group.getValue().entrySet()) {
+                String label = "name=\"" + escape(timer.getKey()) + "\"";
+                LatencyHistogram.Snapshot snapshot = timer.getValue();
+                for (double quantile : QUANTILES) {
+                    out.append(metric).append('{').append(label).append(",quantile=\"").append(Double.toString(quantile)).append("\"} ")
+                            .append(Double.toString(snapshot.getValueAtQuantile(quantile) / NANOS_PER_SECOND)).append('\n');
+                }
+                out.append(metric).append("_sum{").append(label).append("} ")
+                        .append(Double.toString(snapshot.getSum() / NANOS_PER_SECOND)).append('\n');
+                out.append(metric).append("_count{").append(label).append("} ")
+                        .append(Long.toString(snapshot.getCount())).append('\n');
+            }
+        }
+        for (Map.Entry<String, Map<String, Long>> group : registry.getCounters().entrySet()) {
+            String metric = metricName(group.getKey()) + "_total";
+            out.append("# TYPE ").append(metric).append(" counter\n");
+            for (Map.Entry<String, Long> counter : group.getValue().entrySet()) {
+                out.append(metric).append("{name=\"").append(escape(counter.getKey())).append("\"} ")
+                        .append(Long.toString(counter.getValue())).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Replaces the file with the current metrics.
+     * @param file
+     * @throws IOException
+     */
+    public void writeTo(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writeTo(out);
+            }
+            try {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes the file every period on a daemon thread, replacing any earlier schedule.
+     * Failures are logged.
+     * @param file
+     * @param period
+     * @param unit
+     * @throws IllegalArgumentException if period is not positive
+     */
+    public synchronized void writeEvery(Path file, long period, TimeUnit unit) {
+        Objects.requireNonNull(file);
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be a positive number");
+        }
+        close();
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gwf-prometheus-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleAtFixedRate(() -> {
+            try {
+                writeTo(file);
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Could not write metrics to " + file, e);
+            }
+        }, 0, period, unit);
+    }
+
+    /**
+     * Stops writing on a schedule.
+     */
+    @Override
+    public synchronized void close() {
+        if (null != writer) {
+            writer.shutdown();
+            writer = null;
+        }
+    }
+
+    private String metricName(String group) {
+        StringBuilder sb = new StringBuilder(prefix.length() + group.length() + 1);
+        if (!prefix.isEmpty()) {
+            sb.append(prefix).append('_');
+        }
+        for (int i = 0; i < group.length(); i++) {
+            char c = group.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (c >= '0' && c <= '9' && sb.length() > 0);
+            sb.append(valid ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            default:
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static Builder builder(MetricsRegistry registry) {
+        return new BuilderImpl(registry);
+    }
+
+    public static interface Builder {
+        /**
+         * Prepended to every metric name, followed by an underscore; empty for none.<br><br>
+         * <i>Default: gwf</i>
+         * @param prefix
+         * @return
+         * @throws IllegalArgumentException if prefix is not empty and not a valid
+         *         Prometheus metric name
+         */
+        Builder prefix(String prefix);
+
+        PrometheusExporter build();
+    }
+
+    private static class BuilderImpl implements Builder {
+        private static final Pattern VALID_PREFIX = Pattern.compile("(?:[a-zA-Z_:][a-zA-Z0-9_:]*)?");
+        private final MetricsRegistry registry;
+        private String prefix = "gwf";
+
+        private BuilderImpl(MetricsRegistry registry) {
+            this.registry = Objects.requireNonNull(registry);
+        }
+
+        @Override
+        public Builder prefix(String prefix) {
+            if (!VALID_PREFIX.matcher(Objects.requireNonNull(prefix)).matches()) {
+                throw new IllegalArgumentException("prefix must be a valid Prometheus metric name");
+            }
+            this.prefix = prefix;
+            return this;
+        }
+
+        @Override
+        public PrometheusExporter build() {
+            return new PrometheusExporter(this);
+        }
+    }
+}
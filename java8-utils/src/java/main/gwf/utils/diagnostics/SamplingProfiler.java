@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Description: An in-process sampling profiler, for when no external profiler can be
+ * attached. A daemon thread takes the stack of every thread (or of one thread group) at
+ * a fixed interval, keeps the frames that pass the same filter as
+ * {@link CallStackAnalyzer.Builder#filter(Predicate)}, and counts them as hot stacks in
+ * a {@link StackProfile} and as hot frames by innermost matching frame.<br>
+ * <br>
+ * Samples are wall-clock: threads are sampled whatever they are doing, including waiting,
+ * unless {@link Builder#runnableOnly()} is set. As in {@link CallStackAnalyzer}, frames
+ * of anonymous classes and lambdas are skipped.
+ * <br>
+ */
+public class SamplingProfiler {
+    private static final Logger LOG = LogManager.getLogger(SamplingProfiler.class);
+
+    private final Predicate<String> fnMatchClass;
+    /**
+     * Results of {@link #fnMatchClass} by class name.
+     */
+    private final Map<String, Boolean> classMatches = new ConcurrentHashMap<>();
+    private final Function<StackTraceElement, String> fnFormat;
+    private final long intervalNanos;
+    private final ThreadGroup threadGroup;
+    private final boolean runnableOnly;
+    private final StackProfile profile;
+    private final int maxFrames;
+    private final Map<String, LongAdder> hotFrames = new ConcurrentHashMap<>();
+    private final LongAdder samples = new LongAdder();
+
+    private final Object lifecycleLock = new Object();
+    private volatile Thread sampler = null;
+
+    private SamplingProfiler(BuilderImpl builder) {
+        this.fnMatchClass = builder.fnMatchClass;
+        this.fnFormat = StackFrames.cached(builder.fnFormat, builder.maxNodes);
+        this.intervalNanos = builder.intervalNanos;
+        this.threadGroup = builder.threadGroup;
+        this.runnableOnly = builder.runnableOnly;
+        this.profile = StackProfile.builder().maxDepth(builder.maxDepth).maxNodes(builder.maxNodes).keepTop(builder.keepTop).build();
+        this.maxFrames = builder.maxNodes;
+    }
+
+    /**
+     * Starts sampling on a new daemon thread. Does nothing if already started.
+     */
+    public void start() {
+        synchronized (lifecycleLock) {
+            if (null == sampler) {
+                Thread thread = new Thread(this::run, "gwf-sampling-profiler");
+                thread.setDaemon(true);
+                sampler = thread;
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stops sampling and waits for the sampling thread to finish. What was sampled so far
+     * is kept, and sampling can be started again.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (lifecycleLock) {
+            thread = sampler;
+            sampler = null;
+        }
+        if (null != thread) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return null != sampler;
+    }
+
+    /**
+     * @return the number of thread stacks sampled, including those without matching frames
+     */
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    /**
+     * @return the hot stacks; may be read while sampling
+     */
+    public StackProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @param n
+     * @return the n innermost matching frames seen most often, with their sample counts,
+     *         most frequent first
+     */
+    public List<Map.Entry<String, Long>> getHotFrames(int n) {
+        List<Map.Entry<String, Long>> frames = new ArrayList<>();
+        hotFrames.forEach((frame, count) -> frames.add(new AbstractMap.SimpleImmutableEntry<>(frame, count.sum())));
+        frames.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return frames.subList(0, Math.min(n, frames.size()));
+    }
+
+    /**
+     * Writes the hot stacks in collapsed-stack format.
+     * @param out
+     * @throws IOException
+     * @see StackProfile#writeCollapsed(Appendable)
+     */
+    public void writeCollapsed(Appendable out) throws IOException {
+        profile.writeCollapsed(out);
+    }
+
+    /**
+     * Drops everything sampled so far.
+     */
+    public void reset() {
+        profile.reset();
+        hotFrames.clear();
+        samples.reset();
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        String[] frames = new String[profile.getMaxDepth()];
+        Thread[] threads = new Thread[16];
+        while (sampler == self) {
+            long next = System.nanoTime() + intervalNanos;
+            try {
+                if (null == threadGroup) {
+                    for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+                        sample(entry.getKey(), entry.getValue(), frames);
+                    }
+                } else {
+                    int n;
+                    while ((n = threadGroup.enumerate(threads)) == threads.length) {
+                        threads = new Thread[threads.length * 2];
+                    }
+                    for (int i = 0; i < n; i++) {
+                        sample(threads[i], threads[i].getStackTrace(), frames);
+                        threads[i] = null;
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Sampling failed", e);
+            }
+            long delay;
+            while (sampler == self && (delay = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, delay);
+                if (self.isInterrupted()) {
+                    interrupted(self);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops sampling after an interrupt. The interrupt status is left set, and an
+     * interrupt not sent by {@link #stop()} is logged, as parking would no longer wait.
+     */
+    private void interrupted(Thread self) {
+        synchronized (lifecycleLock) {
+            if (sampler == self) {
+                sampler = null;
+                LOG.warn("Sampling thread interrupted; sampling stopped");
+            }
+        }
+    }
+
+    private void sample(Thread thread, StackTraceElement[] stack, String[] frames) {
+        if (thread == Thread.currentThread() || (runnableOnly && thread.getState() != Thread.State.RUNNABLE)) {
+            return;
+        }
+        samples.increment();
+        int length = 0;
+        for (int i = 0; i < stack.length && length < frames.length; i++) {
+            StackTraceElement e = stack[i];
+            if (matches(e)) {
+                frames[length++] = fnFormat.apply(e);
+            }
+        }
+        if (0 == length) {
+            return;
+        }
+        profile.record(frames, length);
+        LongAdder count = hotFrames.get(frames[0]);
+        if (null == count && hotFrames.size() < maxFrames) {
+            count = hotFrames.computeIfAbsent(frames[0], f -> new LongAdder());
+        }
+        if (null != count) {
+            count.increment();
+        }
+        Arrays.fill(frames, 0, length, null);
+    }
+
+    private boolean matches(StackTraceElement e) {
+        String className = e.getClassName();
+        if (className.indexOf('$') != -1 || e.getMethodName().indexOf('$') != -1) {
+            return false;
+        }
+        Boolean matches = classMatches.get(className);
+        if (null == matches) {
+            matches = fnMatchClass.test(className);
+            if (classMatches.size() < maxFrames) {
+                classMatches.put(className, matches);
+            }
+        }
+        return matches;
+    }
+
+    public static Builder builder() {
+        return new BuilderImpl();
+    }
+
+    public static interface Builder {
+        /**
+         * Only count frames of classes whose names match, as in
+         * {@link CallStackAnalyzer.Builder#filter(Predicate)}.<br><br>
+         * <i>Default: s -> true</i>
+         * @param match
+         * @return
+         */
+        Builder filter(Predicate<String> match);
+        /**
+         * The time between samples.<br><br>
+         * <i>Default: 10 milliseconds</i>
+         * @param interval
+         * @param unit
+         * @return
+         */
+        Builder interval(long interval, TimeUnit unit);
+        /**
+         * Only sample the threads of this group and its subgroups.<br><br>
+         * <i>Default: all threads</i>
+         * @param group
+         * @return
+         */
+        Builder threadGroup(ThreadGroup group);
+        /**
+         * Only sample threads that are runnable, to profile CPU rather than wall-clock
+         * time.<br><br>
+         * <i>Default: all states</i>
+         * @return
+         */
+        Builder runnableOnly();
+        /**
+         * The maximum number of matching frames kept per sample, innermost first.<br><br>
+         * <i>Default: 64</i>
+         * @param maxDepth
+         * @return
+         */
+        Builder maxDepth(int maxDepth);
+        /**
+         * Bounds the memory used; see {@link StackProfile.Builder#maxNodes(int)}. Also
+         * bounds the number of distinct hot frames counted.<br><br>
+         * <i>Default: 10000</i>
+         * @param maxNodes
+         * @return
+         */
+        Builder maxNodes(int maxNodes);
+        /**
+         * See {@link StackProfile.Builder#keepTop(int)}.<br><br>
+         * <i>Default: 1000</i>
+         * @param keepTop
+         * @return
+         */
+        Builder keepTop(int keepTop);
+        /**
+         * A formatter that is applied to each stack element, once per element.<br><br>
+         * <i>Default: <code>e -> e.getClassName() + "." + e.getMethodName() + "(...)[" + e.getLineNumber() + "]"</code></i>
+         * @param fnFormat
+         * @return
+         */
+        Builder formatWith(Function<StackTraceElement, String> fnFormat);
+        SamplingProfiler build();
+    }
+
+    private static class BuilderImpl implements Builder {
+        private Predicate<String> fnMatchClass = s -> true;
+        private long intervalNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        private ThreadGroup threadGroup = null;
+        private boolean runnableOnly = false;
+        private int maxDepth = 64;
+        private int maxNodes = 10_000;
+        private int keepTop = 1_000;
+        private Function<StackTraceElement, String> fnFormat = e -> e.getClassName() + "." + e.getMethodName() + "(...)[" + e.getLineNumber() + "]";
+
+        @Override
+        public Builder filter(Predicate<String> match) {
+            fnMatchClass = Objects.requireNonNull(match);
+            return this;
+        }
+        @Override
+        public Builder interval(long interval, TimeUnit unit) {
+            if (interval < 1) {
+                throw new IllegalArgumentException("interval must be a positive number");
+            }
+            intervalNanos = Objects.requireNonNull(unit).toNanos(interval);
+            return this;
+        }
+        @Override
+        public Builder threadGroup(ThreadGroup group) {
+            threadGroup = Objects.requireNonNull(group);
+            return this;
+        }
+        @Override
+        public Builder runnableOnly() {
+            runnableOnly = true;
+            return this;
+        }
+        @Override
+        public Builder maxDepth(int maxDepth) {
+            this.maxDepth = positive(maxDepth, "maxDepth");
+            return this;
+        }
+        @Override
+        public Builder maxNodes(int maxNodes) {
+            this.maxNodes = positive(maxNodes, "maxNodes");
+            return this;
+        }
+        @Override
+        public Builder keepTop(int keepTop) {
+            this.keepTop = positive(keepTop, "keepTop");
+            return this;
+        }
+        @Override
+        public Builder formatWith(Function<StackTraceElement, String> fnFormat) {
+            this.fnFormat = Objects.requireNonNull(fnFormat);
+            return this;
+        }
+        @Override
+        public SamplingProfiler build() {
+            return new SamplingProfiler(this);
+        }
+
+        private static int positive(int value, String name) {
+            if (value < 1) {
+                throw new IllegalArgumentException(name + " must be a positive number");
+            }
+            return value;
+        }
+    }
+}
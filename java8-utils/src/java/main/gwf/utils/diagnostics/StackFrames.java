@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Description: Finds frames of the current thread's stack without materializing the
+ * whole stack, as {@link Thread#getStackTrace()} does. The walk stops at the first
+ * matching frame, and only frames whose class and method names pass the filter are turned
+ * into {@link StackTraceElement}s.<br>
+ * <br>
+ * Uses <code>java.lang.StackWalker</code> when running on Java 9 or later. On Java 8 it
+ * reads single frames of a <code>Throwable</code>'s backtrace through
+ * <code>sun.misc.JavaLangAccess</code>, and only falls back to a full stack trace if
+ * neither is available.<br>
+ * <br>
+ * Frame numbers count from the method that calls into this class, which is frame 0.
+ * <br>
+ */
+public final class StackFrames {
+    private static final String INTERNAL = StackFrames.class.getName();
+    private static final Walker WALKER = Walker.create();
+
+    private StackFrames() {
+    }
+
+    /**
+     * @param skip the number of frames to skip, starting at the caller
+     * @param filter tested with the class name and method name of each remaining frame
+     * @return the first remaining frame that passes the filter, or null
+     */
+    public static StackTraceElement find(int skip, BiPredicate<String, String> filter) {
+        StackTraceElement[] found = new StackTraceElement[1];
+        WALKER.walk(skip, Objects.requireNonNull(filter), 1, e -> found[0] = e);
+        return found[0];
+    }
+
+    /**
+     * @param depth 0 for the caller, 1 for its caller, and so on
+     * @return the frame, or null if the stack is not that deep
+     */
+    public static StackTraceElement frame(int depth) {
+        return find(depth, (c, m) -> true);
+    }
+
+    /**
+     * Passes the frames that pass the filter to the action, from the caller outwards,
+     * stopping after <code>limit</code> of them.
+     * @param skip the number of frames to skip, starting at the caller
+     * @param filter tested with the class name and method name of each remaining frame
+     * @param limit
+     * @param action
+     * @return the number of frames passed to the action
+     */
+    public static int walk(int skip, BiPredicate<String, String> filter, int limit, Consumer<StackTraceElement> action) {
+        return limit < 1 ? 0 : WALKER.walk(skip, Objects.requireNonNull(filter), limit, Objects.requireNonNull(action));
+    }
+
+    /**
+     * Wraps a formatter of call sites in a cache, so that each call site is formatted
+     * only once. Once the cache holds <code>maxSize</code> call sites, further ones are
+     * formatted on every call instead of being cached.
+     * @param format
+     * @param maxSize
+     * @return
+     */
+    public static Function<StackTraceElement, String> cached(Function<StackTraceElement, String> format, int maxSize) {
+        Objects.requireNonNull(format);
+        Map<StackTraceElement, String> cache = new ConcurrentHashMap<>();
+        return e -> {
+            String formatted = cache.get(e);
+            if (null == formatted) {
+                formatted = format.apply(e);
+                if (cache.size() < maxSize) {
+                    cache.putIfAbsent(e, formatted);
+                }
+            }
+            return formatted;
+        };
+    }
+
+    private static boolean isInternal(String className) {
+        return className.startsWith(INTERNAL);
+    }
+
+    private static abstract class Walker {
+        /**
+         * @return the number of frames passed to the action
+         */
+        abstract int walk(int skip, BiPredicate<String, String> filter, int limit, Consumer<StackTraceElement> action);
+
+        static Walker create() {
+            try {
+                return new StackWalkerWalker();
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 8
+            }
+            try {
+                return new BacktraceWalker();
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Not a JDK that provides JavaLangAccess
+            }
+            return new StackTraceWalker();
+        }
+    }
+
+    /**
+     * Walks <code>java.lang.StackWalker</code> frames lazily, through method handles so
+     * that this class still compiles for Java 8.
+     */
+    private static final class StackWalkerWalker extends Walker {
+        private final MethodHandle walk;
+        private final MethodHandle className;
+        private final MethodHandle methodName;
+        private final MethodHandle toStackTraceElement;
+
+        private StackWalkerWalker() throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            Object walker = walkerClass.getMethod("getInstance").invoke(null);
+            // walk is caller-sensitive, which a public lookup refuses to resolve
+            walk = MethodHandles.lookup().findVirtual(walkerClass, "walk", MethodType.methodType(Object.class, Function.class))
+                    .bindTo(walker);
+            className = frameAccessor(lookup, frameClass, "getClassName", String.class);
+            methodName = frameAccessor(lookup, frameClass, "getMethodName", String.class);
+            toStackTraceElement = frameAccessor(lookup, frameClass, "toStackTraceElement", StackTraceElement.class);
+        }
+
+        private static MethodHandle frameAccessor(MethodHandles.Lookup lookup, Class<?> frameClass, String name, Class<?> type)
+                throws ReflectiveOperationException {
+            return lookup.findVirtual(frameClass, name, MethodType.methodType(type)).asType(MethodType.methodType(type, Object.class));
+        }
+
+        @Override
+        int walk(int skip, BiPredicate<String, String> filter, int limit, Consumer<StackTraceElement> action) {
+            Function<Stream<Object>, Integer> search = frames -> {
+                int toSkip = skip;
+                int found = 0;
+                try {
+                    for (Iterator<Object> it = frames.iterator(); found < limit && it.hasNext();) {
+                        Object frame = it.next();
+                        String c = (String) className.invokeExact(frame);
+                        if (isInternal(c)) {
+                            continue;
+                        }
+                        if (toSkip > 0) {
+                            toSkip--;
+                        } else if (filter.test(c, (String) methodName.invokeExact(frame))) {
+                            action.accept((StackTraceElement) toStackTraceElement.invokeExact(frame));
+                            found++;
+                        }
+                    }
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+                return found;
+            };
+            try {
+                return (Integer) (Object) walk.invokeExact((Function<?, ?>) search);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads single frames of a Throwable's backtrace through
+     * <code>sun.misc.JavaLangAccess</code>, so that only the frames looked at become
+     * StackTraceElements.
+     */
+    private static final class BacktraceWalker extends Walker {
+        private final MethodHandle depth;
+        private final MethodHandle element;
+
+        private BacktraceWalker() throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> accessClass = Class.forName("sun.misc.JavaLangAccess");
+            Object access = Class.forName("sun.misc.SharedSecrets").getMethod("getJavaLangAccess").invoke(null);
+            depth = lookup.findVirtual(accessClass, "getStackTraceDepth", MethodType.methodType(int.class, Throwable.class))
+                    .bindTo(access);
+            element = lookup.findVirtual(accessClass, "getStackTraceElement",
+                    MethodType.methodType(StackTraceElement.class, Throwable.class, int.class)).bindTo(access);
+            // Fail now rather than on first use
+            walk(0, (c, m) -> true, 1, e -> {});
+        }
+
+        @Override
+        int walk(int skip, BiPredicate<String, String> filter, int limit, Consumer<StackTraceElement> action) {
+            Throwable t = new Throwable();
+            try {
+                int n = (int) depth.invokeExact(t);
+                int toSkip = skip;
+                int found = 0;
+                for (int i = 0; i < n && found < limit; i++) {
+                    StackTraceElement e = (StackTraceElement) element.invokeExact(t, i);
+                    if (isInternal(e.getClassName())) {
+                        continue;
+                    }
+                    if (toSkip > 0) {
+                        toSkip--;
+                    } else if (filter.test(e.getClassName(), e.getMethodName())) {
+                        action.accept(e);
+                        found++;
+                    }
+                }
+                return found;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class StackTraceWalker extends Walker {
+        @Override
+        int walk(int skip, BiPredicate<String, String> filter, int limit, Consumer<StackTraceElement> action) {
+            int toSkip = skip;
+            int found = 0;
+            for (StackTraceElement e : new Throwable().getStackTrace()) {
+                if (found == limit) {
+                    break;
+                }
+                if (isInternal(e.getClassName())) {
+                    continue;
+                }
+                if (toSkip > 0) {
+                    toSkip--;
+                } else if (filter.test(e.getClassName(), e.getMethodName())) {
+                    action.accept(e);
+                    found++;
+                }
+            }
+            return found;
+        }
+    }
+}
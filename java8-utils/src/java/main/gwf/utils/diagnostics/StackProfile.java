@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.diagnostics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Description: Counts how often each call stack was recorded, in a trie keyed by frame so
+ * that stacks with a common origin share their nodes. Fed by
+ * {@link CallStackAnalyzer#recordTo(StackProfile)} or a {@link SamplingProfiler}, and
+ * dumped as collapsed stacks (<code>outer;inner count</code> per line), the input format
+ * of flame graph tools.<br>
+ * <br>
+ * Recording is lock-free and may happen on any number of threads at once. Memory is
+ * bounded: stacks are cut to the innermost {@link Builder#maxDepth(int) maxDepth} frames,
+ * and once the trie holds {@link Builder#maxNodes(int) maxNodes} frames it is pruned to
+ * the {@link Builder#keepTop(int) keepTop} most frequent stacks, or fewer if those alone
+ * would still fill more than half of it. The counts of pruned stacks are kept as a single
+ * <code>[other]</code> stack, so totals stay correct.
+ * <br>
+ */
+public final class StackProfile {
+    private static final String OTHER = "[other]";
+
+    private final int maxDepth;
+    private final int maxNodes;
+    private final int keepTop;
+    private final Node root = new Node(null);
+    private final AtomicInteger nodes = new AtomicInteger();
+    private final LongAdder other = new LongAdder();
+    private final ReentrantLock pruneLock = new ReentrantLock();
+
+    private static final class Node {
+        private final String frame;
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        /**
+         * Stacks that end at this node.
+         */
+        private final LongAdder count = new LongAdder();
+
+        private Node(String frame) {
+            this.frame = frame;
+        }
+    }
+
+    private StackProfile(int maxDepth, int maxNodes, int keepTop) {
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.keepTop = keepTop;
+    }
+
+    /**
+     * Records one occurrence of a stack.
+     * @param frames formatted frames, innermost first as in a stack trace
+     * @param length the number of frames used, from the start of the array
+     */
+    public void record(String[] frames, int length) {
+        Node node = root;
+        for (int i = Math.min(length, maxDepth) - 1; i >= 0; i--) {
+            Node child = node.children.get(frames[i]);
+            if (null == child) {
+                child = addChild(node, frames[i]);
+                if (null == child) {
+                    // Full; count the stack at its longest recorded prefix
+                    break;
+                }
+            }
+            node = child;
+        }
+        (node == root ? other : node.count).increment();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the number of frames held
+     */
+    public int size() {
+        return nodes.get();
+    }
+
+    /**
+     * @return the number of stacks recorded since creation or the last reset
+     */
+    public long getTotal() {
+        long[] total = {other.sum()};
+        forEach(root, new ArrayList<>(), (path, count) -> total[0] += count);
+        return total[0];
+    }
+
+    /**
+     * Prunes the trie to the <code>top</code> most frequent stacks now, adding the counts
+     * of the others to <code>[other]</code>. Counts recorded into a pruned stack while
+     * this runs may be lost.
+     * @param top
+     */
+    public void prune(int top) {
+        pruneLock.lock();
+        try {
+            pruneTo(top);
+        } finally {
+            pruneLock.unlock();
+        }
+    }
+
+    /**
+     * Drops everything recorded so far.
+     */
+    public void reset() {
+        pruneLock.lock();
+        try {
+            root.children.clear();
+            root.count.reset();
+            other.reset();
+            nodes.set(0);
+        } finally {
+            pruneLock.unlock();
+        }
+    }
+
+    /**
+     * Writes every recorded stack as one line of <code>outer;...;inner count</code>.
+     * Semicolons within frames are replaced by commas.
+     * @param out
+     * @throws IOException
+     */
+    public void writeCollapsed(Appendable out) throws IOException {
+        IOException[] failure = {null};
+        forEach(root, new ArrayList<>(), (path, count) -> {
+            if (null == failure[0]) {
+                try {
+                    writeLine(out, path, count);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        long otherCount = other.sum();
+        if (null == failure[0] && otherCount > 0) {
+            writeLine(out, Collections.singletonList(OTHER), otherCount);
+        }
+        if (null != failure[0]) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * @return the collapsed stacks as written by {@link #writeCollapsed(Appendable)}
+     */
+    public String toCollapsed() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeCollapsed(sb);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return sb.toString();
+    }
+
+    private static void writeLine(Appendable out, List<String> path, long count) throws IOException {
+        for (int i = 0; i < path.size(); i++) {
+            if (i > 0) {
+                out.append(';');
+            }
+            String frame = path.get(i);
+            out.append(frame.indexOf(';') == -1 ? frame : frame.replace(';', ','));
+        }
+        out.append(' ').append(Long.toString(count)).append('\n');
+    }
+
+    private interface StackVisitor {
+        void visit(List<String> path, long count);
+    }
+
+    /**
+     * Visits every stack with a count, outermost frame first in the path.
+     */
+    private static void forEach(Node node, List<String> path, StackVisitor visitor) {
+        long count = node.count.sum();
+        if (count > 0 && !path.isEmpty()) {
+            visitor.visit(path, count);
+        }
+        for (Node child : node.children.values()) {
+            path.add(child.frame);
+            forEach(child, path, visitor);
+            path.remove(path.size() - 1);
+        }
+    }
+
+    /**
+     * @return the new child, or null if the trie is full
+     */
+    private Node addChild(Node parent, String frame) {
+        if (nodes.get() >= maxNodes) {
+            if (pruneLock.tryLock()) {
+                try {
+                    // Halve the stacks kept until there is room again, so that pruning
+                    // happens at most once per maxNodes / 2 new frames
+                    for (int top = keepTop; nodes.get() >= maxNodes || (nodes.get() > maxNodes / 2 && top > 1); top /= 2) {
+                        pruneTo(top);
+                    }
+                } finally {
+                    pruneLock.unlock();
+                }
+            }
+            if (nodes.get() >= maxNodes) {
+                return null;
+            }
+        }
+        return parent.children.computeIfAbsent(frame, f -> {
+            nodes.incrementAndGet();
+            return new Node(f);
+        });
+    }
+
+    /**
+     * Must hold {@link #pruneLock}.
+     */
+    private void pruneTo(int top) {
+        List<Node> stacks = new ArrayList<>();
+        collect(root, stacks);
+        Set<Node> keep = new HashSet<>();
+        if (stacks.size() > top) {
+            stacks.sort((a, b) -> Long.compare(b.count.sum(), a.count.sum()));
+            keep.addAll(stacks.subList(0, top));
+        } else {
+            keep.addAll(stacks);
+        }
+        int[] remaining = {0};
+        retain(root, keep, remaining);
+        nodes.set(remaining[0]);
+    }
+
+    private static void collect(Node node, List<Node> stacks) {
+        for (Node child : node.children.values()) {
+            if (child.count.sum() > 0) {
+                stacks.add(child);
+            }
+            collect(child, stacks);
+        }
+    }
+
+    /**
+     * Drops the counts of the nodes not kept, and the subtrees that are left without any.
+     * @return true if the node is to stay
+     */
+    private boolean retain(Node node, Set<Node> keep, int[] remaining) {
+        boolean stays = node == root || keep.contains(node);
+        if (!stays) {
+            other.add(node.count.sumThenReset());
+        }
+        for (Node child : node.children.values()) {
+            if (retain(child, keep, remaining)) {
+                stays = true;
+            } else {
+                node.children.remove(child.frame);
+            }
+        }
+        if (stays && node != root) {
+            remaining[0]++;
+        }
+        return stays;
+    }
+
+    public static Builder builder() {
+        return new BuilderImpl();
+    }
+
+    public static interface Builder {
+        /**
+         * The maximum number of frames kept per stack; deeper stacks lose their outermost
+         * frames.<br><br>
+         * <i>Default: 64</i>
+         * @param maxDepth
+         * @return
+         */
+        Builder maxDepth(int maxDepth);
+        /**
+         * The number of frames held before the profile prunes itself.<br><br>
+         * <i>Default: 10000</i>
+         * @param maxNodes
+         * @return
+         */
+        Builder maxNodes(int maxNodes);
+        /**
+         * The number of most frequent stacks kept when pruning.<br><br>
+         * <i>Default: 1000</i>
+         * @param keepTop
+         * @return
+         */
+        Builder keepTop(int keepTop);
+        StackProfile build();
+    }
+
+    private static class BuilderImpl implements Builder {
+        private int maxDepth = 64;
+        private int maxNodes = 10_000;
+        private int keepTop = 1_000;
+
+        @Override
+        public Builder maxDepth(int maxDepth) {
+            this.maxDepth = positive(maxDepth, "maxDepth");
+            return this;
+        }
+        @Override
+        public Builder maxNodes(int maxNodes) {
+            this.maxNodes = positive(maxNodes, "maxNodes");
+            return this;
+        }
+        @Override
+        public Builder keepTop(int keepTop) {
+            this.keepTop = positive(keepTop, "keepTop");
+            return this;
+        }
+        @Override
+        public StackProfile build() {
+            return new StackProfile(maxDepth, maxNodes, keepTop);
+        }
+
+        private static int positive(int value, String name) {
+            if (value < 1) {
+                throw new IllegalArgumentException(name + " must be a positive number");
+            }
+            return value;
+        }
+    }
+}
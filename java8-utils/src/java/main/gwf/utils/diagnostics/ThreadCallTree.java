@@ -0,0 +1,156 @@
+package gwf.utils.diagnostics;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description: The {@link Perf} call tree of one thread. Only the owning thread enters
+ * timers and records their runs, so recording never takes a lock; the run of a timer
+ * closed on another thread is not counted. The owner is held weakly, so that the tree of
+ * a thread that has ended can be retired without the thread being kept alive.
+ * <br>
+ */
+final class ThreadCallTree {
+    /**
+     * Deeper timers, typically recursion, are not added to the tree.
+     */
+    private static final int MAX_DEPTH = 64;
+
+    static final class Node {
+        private final PerfKey key;
+        private final int depth;
+        private final Map<PerfKey, Node> children = new ConcurrentHashMap<>(4);
+        /**
+         * Written only by the owner; volatile so that merges on other threads never see
+         * half of a value.
+         */
+        private volatile long count = 0;
+        private volatile long total = 0;
+
+        private Node(PerfKey key, Node parent) {
+            this.key = key;
+            this.depth = null == parent ? 0 : parent.depth + 1;
+        }
+    }
+
+    /**
+     * One run of a timer on the owner's stack of running timers.
+     */
+    static final class Frame {
+        final ThreadCallTree tree;
+        private final Node node;
+        private final Frame parent;
+        /**
+         * Set when the timer is closed on another thread, which may not touch the stack;
+         * the owner pops the frame the next time it enters a timer.
+         */
+        private volatile boolean closed = false;
+
+        private Frame(ThreadCallTree tree, Node node, Frame parent) {
+            this.tree = tree;
+            this.node = node;
+            this.parent = parent;
+        }
+    }
+
+    private final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+    private final Node root = new Node(null, null);
+    private final Frame bottom = new Frame(this, root, null);
+    /**
+     * The innermost running timer's frame. Only touched by the owner.
+     */
+    private Frame current = bottom;
+
+    /**
+     * Called by the owner when a timer starts.
+     * @return the timer's frame, or null if the tree is too deep
+     */
+    Frame enter(PerfKey key) {
+        Frame top = current;
+        while (top.closed) {
+            top = top.parent;
+        }
+        current = top;
+        if (top.node.depth >= MAX_DEPTH) {
+            return null;
+        }
+        Node child = top.node.children.get(key);
+        if (null == child) {
+            child = new Node(key, top.node);
+            top.node.children.put(key, child);
+        }
+        current = new Frame(this, child, top);
+        return current;
+    }
+
+    /**
+     * Called when a timer stops, by any thread. On the owner, records the run and leaves
+     * the frame along with any timers within it that are still running.
+     */
+    void exit(Frame frame, long duration) {
+        if (!isOwner()) {
+            frame.closed = true;
+            return;
+        }
+        Node node = frame.node;
+        node.count = node.count + 1;
+        node.total = node.total + duration;
+        unwind(frame);
+    }
+
+    /**
+     * Leaves the frame without recording a run, for a timer that was abandoned.
+     */
+    void leave(Frame frame) {
+        if (isOwner()) {
+            unwind(frame);
+        } else {
+            frame.closed = true;
+        }
+    }
+
+    /**
+     * Pops the frame and everything above it, if it is still on the stack.
+     */
+    private void unwind(Frame frame) {
+        for (Frame f = current; null != f; f = f.parent) {
+            if (f == frame) {
+                current = frame.parent;
+                return;
+            }
+        }
+    }
+
+    private boolean isOwner() {
+        return Thread.currentThread() == owner.get();
+    }
+
+    /**
+     * @return whether the owner has ended, so that nothing more will be recorded
+     */
+    boolean isRetired() {
+        Thread thread = owner.get();
+        return null == thread || !thread.isAlive();
+    }
+
+    void mergeInto(CallTree target) {
+        merge(root, target);
+    }
+
+    private static void merge(Node node, CallTree target) {
+        for (Node child : node.children.values()) {
+            CallTree merged = target.child(child.key.getId());
+            merged.add(child.count, child.total);
+            merge(child, merged);
+        }
+    }
+
+    /**
+     * Drops what was recorded. Timers still running are recorded in nodes that are no
+     * longer part of the tree.
+     */
+    void clear() {
+        root.children.clear();
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.hibernate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.TemporalAccessor;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.type.CustomType;
+import org.hibernate.type.EnumType;
+import org.hibernate.type.LiteralType;
+import org.hibernate.type.Type;
+
+/**
+ * Description: The SQL of a query together with the values bound to it, as returned by
+ * {@link HibernateUtils#getBoundQuery(javax.persistence.Query, org.hibernate.Session)}.
+ * There is one {@link Parameter} per <code>?</code> placeholder of {@link #getSql()}, in
+ * order: list-valued parameters are expanded to one placeholder per element, entities to
+ * their identifiers and components to their columns. If the values of a list-valued
+ * parameter cannot be read from the query, the placeholders are not expanded and
+ * {@link #getInlinedSql()} throws.<br>
+ * <br>
+ * {@link #getInlinedSql()} replaces the placeholders with SQL literals, for pasting into
+ * <code>EXPLAIN</code>. It is meant for diagnosis only: never execute it, as the
+ * literals are rendered from Java values and may differ from what the driver binds.
+ * <br>
+ */
+public final class BoundQuery {
+    private final String sql;
+    private final List<Parameter> parameters;
+    private final boolean aligned;
+    private final Dialect dialect;
+
+    BoundQuery(String sql, List<Parameter> parameters, boolean aligned, Dialect dialect) {
+        this.sql = sql;
+        this.parameters = Collections.unmodifiableList(parameters);
+        this.aligned = aligned;
+        this.dialect = dialect;
+    }
+
+    /**
+     * @return the SQL with a <code>?</code> per parameter
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the parameters, in the order of their placeholders
+     */
+    public List<Parameter> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the SQL with each placeholder replaced by its value as a literal, or by
+     *         <code>?</code> if the parameter is not bound
+     * @throws IllegalStateException if the placeholders could not be matched to the
+     *         parameters, which happens for parameters Hibernate adds itself and for
+     *         list-valued parameters whose values the query does not expose
+     */
+    public String getInlinedSql() {
+        if (!aligned) {
+            throw new IllegalStateException("The placeholders of the SQL could not be matched to the parameters");
+        }
+        return replacePlaceholders(sql, i -> {
+            Parameter parameter = parameters.get(i);
+            return parameter.isBound() ? toLiteral(parameter.getValue(), parameter.getType(), dialect) : "?";
+        });
+    }
+
+    @Override
+    public String toString() {
+        return sql + " " + parameters;
+    }
+
+    /**
+     * Copies the SQL, replacing each <code>?</code> that is not within a quoted literal,
+     * quoted identifier or comment.
+     * @param replacement the text of the n-th placeholder
+     */
+    static String replacePlaceholders(String sql, IntFunction<String> replacement) {
+        StringBuilder sb = new StringBuilder(sql.length() + 16);
+        int placeholder = 0;
+        int length = sql.length();
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                int end = sql.indexOf(c, i + 1);
+                // A doubled quote within the literal ends one part and starts the next
+                end = end < 0 ? length - 1 : end;
+                sb.append(sql, i, end + 1);
+                i = end;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                end = end < 0 ? length - 1 : end;
+                sb.append(sql, i, end + 1);
+                i = end;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                end = end < 0 ? length - 1 : end + 1;
+                sb.append(sql, i, end + 1);
+                i = end;
+            } else if (c == '?') {
+                sb.append(replacement.apply(placeholder++));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the number of placeholders, counted as {@link #replacePlaceholders} does
+     */
+    static int countPlaceholders(String sql) {
+        int[] count = new int[1];
+        replacePlaceholders(sql, i -> {
+            count[0]++;
+            return "?";
+        });
+        return count[0];
+    }
+
+    /**
+     * Renders the value as a literal. Booleans and <code>java.util.Date</code> values are
+     * rendered by their Hibernate type where it is a {@link LiteralType}, which honours
+     * mappings such as <code>yes_no</code> or <code>date</code>. Java 8 date-times are
+     * rendered as the timestamp they are bound as, in the JVM's time zone.
+     */
+    static String toLiteral(Object value, Type type, Dialect dialect) {
+        if (null == value) {
+            return "NULL";
+        }
+        if ((value instanceof Boolean || value instanceof java.util.Date) && type instanceof LiteralType) {
+            String literal = typedLiteral(value, type, dialect);
+            if (null != literal) {
+                return literal;
+            }
+        }
+        if (value instanceof Boolean) {
+            return dialect.toBooleanValueString((Boolean) value);
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            return Double.isNaN(d) || Double.isInfinite(d) ? quote(value.toString(), dialect) : value.toString();
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        if (value instanceof Enum) {
+            Enum<?> e = (Enum<?>) value;
+            boolean ordinal = type instanceof CustomType && ((CustomType) type).getUserType() instanceof EnumType
+                    && ((EnumType) ((CustomType) type).getUserType()).isOrdinal();
+            return ordinal ? Integer.toString(e.ordinal()) : quote(e.name(), dialect);
+        }
+        if (value instanceof java.sql.Date || value instanceof java.sql.Time || value instanceof Timestamp) {
+            return quote(value.toString(), dialect);
+        }
+        if (value instanceof java.util.Date) {
+            return quote(new Timestamp(((java.util.Date) value).getTime()).toString(), dialect);
+        }
+        if (value instanceof Calendar) {
+            return quote(new Timestamp(((Calendar) value).getTimeInMillis()).toString(), dialect);
+        }
+        if (value instanceof Instant) {
+            return quote(Timestamp.from((Instant) value).toString(), dialect);
+        }
+        if (value instanceof ZonedDateTime) {
+            return quote(Timestamp.from(((ZonedDateTime) value).toInstant()).toString(), dialect);
+        }
+        if (value instanceof OffsetDateTime) {
+            return quote(Timestamp.from(((OffsetDateTime) value).toInstant()).toString(), dialect);
+        }
+        if (value instanceof LocalDateTime) {
+            return quote(Timestamp.valueOf((LocalDateTime) value).toString(), dialect);
+        }
+        if (value instanceof LocalDate) {
+            return quote(java.sql.Date.valueOf((LocalDate) value).toString(), dialect);
+        }
+        if (value instanceof LocalTime) {
+            return quote(java.sql.Time.valueOf((LocalTime) value).toString(), dialect);
+        }
+        if (value instanceof OffsetTime) {
+            return quote(java.sql.Time.valueOf(((OffsetTime) value).toLocalTime()).toString(), dialect);
+        }
+        if (value instanceof TemporalAccessor) {
+            return quote(value.toString().replace('T', ' '), dialect);
+        }
+        if (value instanceof byte[]) {
+            StringBuilder sb = new StringBuilder("X'");
+            for (byte b : (byte[]) value) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append('\'').toString();
+        }
+        if (value instanceof char[]) {
+            return quote(new String((char[]) value), dialect);
+        }
+        if (value instanceof UUID) {
+            return quote(value.toString(), dialect);
+        }
+        return quote(String.valueOf(value), dialect);
+    }
+
+    /**
+     * @return the literal the type renders for the value, or null if it cannot
+     */
+    @SuppressWarnings("unchecked")
+    private static String typedLiteral(Object value, Type type, Dialect dialect) {
+        try {
+            return ((LiteralType<Object>) type).objectToSQLString(value, dialect);
+        } catch (Exception e) {
+            // Not a value of the type; rendered from the Java value instead
+            return null;
+        }
+    }
+
+    /**
+     * Quotes the text as a string literal, doubling quotes, and backslashes on MySQL,
+     * which treats them as escapes.
+     */
+    static String quote(String text, Dialect dialect) {
+        boolean backslashes = dialect instanceof MySQLDialect;
+        StringBuilder sb = new StringBuilder(text.length() + 2).append('\'');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\'') {
+                sb.append("''");
+            } else if (c == '\\' && backslashes) {
+                sb.append("\\\\");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('\'').toString();
+    }
+
+    /**
+     * Description: The value of one placeholder.
+     * <br>
+     */
+    public static final class Parameter {
+        private final String name;
+        private final Type type;
+        private final Object value;
+        private final boolean bound;
+
+        Parameter(String name, Type type, Object value, boolean bound) {
+            this.name = name;
+            this.type = type;
+            this.value = value;
+            this.bound = bound;
+        }
+
+        /**
+         * @return <code>:name</code> for a named parameter, <code>?n</code> for a
+         *         positional one, <code>:filter.parameter</code> for a filter parameter,
+         *         or <code>?</code> for a parameter Hibernate added itself
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the Hibernate type of the column, or null if it is not known
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the value bound to the placeholder; for an entity, its identifier
+         */
+        public Object getValue() {
+            return value;
+        }
+
+        /**
+         * @return whether a value is known; false for parameters not bound yet
+         */
+        public boolean isBound() {
+            return bound;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + (bound ? value : "<unbound>");
+        }
+    }
+}
@@ -6,20 +6,394 @@
  */
 package gwf.utils.hibernate;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.hibernate.Filter;
+import org.hibernate.HibernateException;
+import org.hibernate.engine.internal.ForeignKeys;
+import org.hibernate.engine.spi.LoadQueryInfluencers;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.hql.internal.ast.ASTQueryTranslatorFactory;
+import org.hibernate.hql.internal.ast.QueryTranslatorImpl;
 import org.hibernate.hql.spi.QueryTranslator;
+import org.hibernate.param.DynamicFilterParameterSpecification;
+import org.hibernate.param.NamedParameterSpecification;
+import org.hibernate.param.ParameterSpecification;
+import org.hibernate.param.PositionalParameterSpecification;
+import org.hibernate.query.QueryParameter;
+import org.hibernate.query.internal.AbstractProducedQuery;
+import org.hibernate.type.CompositeType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
 import org.hibernate.Session;
 
+import gwf.functional.Memo;
+
 public class HibernateUtils {
+    /**
+     * The default number of translated queries kept by
+     * {@link #getNativeQuery(javax.persistence.Query, Session)}, see
+     * {@link #setNativeQueryCacheSize(int)}.
+     */
+    public static final int NATIVE_QUERY_CACHE_SIZE = 1000;
+    private static final ASTQueryTranslatorFactory factory = new ASTQueryTranslatorFactory();
+    private static volatile Memo<QueryKey, CompiledQuery> nativeQueries = nativeQueryCache(NATIVE_QUERY_CACHE_SIZE);
+
+    private static Memo<QueryKey, CompiledQuery> nativeQueryCache(int size) {
+        return Memo.<QueryKey, CompiledQuery>builder(HibernateUtils::translate)
+                .maximumSize(size)
+                .build();
+    }
+
+    /**
+     * Returns the SQL the query's HQL translates to, including the conditions of the
+     * filters enabled on the session. Translations are cached per session factory, HQL,
+     * enabled filters and the sizes of their list-valued parameters, so only the first
+     * call for a query parses and compiles it.
+     * @param query
+     * @param session
+     * @return
+     */
     public static String getNativeQuery(javax.persistence.Query query, Session session) {
-        String hql = query.unwrap(org.hibernate.query.Query.class).getQueryString();
-        ASTQueryTranslatorFactory factory = new ASTQueryTranslatorFactory();
+        return compile(query, session.unwrap(SessionImplementor.class)).sql;
+    }
+
+    /**
+     * Returns the SQL of {@link #getNativeQuery(javax.persistence.Query, Session)} together
+     * with the values currently bound to the query and to the session's filters, in
+     * placeholder order, without executing anything. Uses the same cached translation.
+     * <br><br>
+     * The values of list-valued parameters are read from the query's parameter bindings;
+     * if a query does not expose them, the result is not aligned. A filter parameter is
+     * recognized by its type, so it is only reported when no other parameter of the
+     * enabled filters has the same type.
+     * @param query
+     * @param session
+     * @return
+     */
+    public static BoundQuery getBoundQuery(javax.persistence.Query query, Session session) {
         SessionImplementor hibSession = session.unwrap(SessionImplementor.class);
-        QueryTranslator trans = factory.createQueryTranslator("", hql, Collections.EMPTY_MAP, hibSession.getFactory(), null);
+        CompiledQuery compiled = compile(query, hibSession);
+        org.hibernate.query.Query<?> hibQuery = query.unwrap(org.hibernate.query.Query.class);
+        List<BoundQuery.Parameter> parameters = new ArrayList<>();
+        String[] expansions = new String[compiled.placeholders];
+        int placeholder = 0;
+        boolean readable = true;
+        for (Slot slot : compiled.slots) {
+            int before = parameters.size();
+            Object value = slot.value(hibQuery, hibSession);
+            if (Slot.UNREADABLE == value) {
+                // Bound, possibly to a list: the number of placeholders is not known
+                readable = false;
+                flatten(slot.name, slot.type, null, false, hibSession, parameters);
+            } else if (value instanceof Collection && 1 == slot.span) {
+                for (Object element : (Collection<?>) value) {
+                    flatten(slot.name, slot.type, element, true, hibSession, parameters);
+                }
+                if (parameters.size() == before) {
+                    flatten(slot.name, slot.type, null, true, hibSession, parameters);
+                }
+            } else {
+                flatten(slot.name, slot.type, value, Slot.UNBOUND != value, hibSession, parameters);
+            }
+            if (1 == slot.span && placeholder < expansions.length) {
+                expansions[placeholder] = placeholders(parameters.size() - before);
+            }
+            placeholder += slot.span;
+        }
+        boolean aligned = compiled.aligned && readable && placeholder == compiled.placeholders;
+        String sql = aligned ? BoundQuery.replacePlaceholders(compiled.sql, i -> null == expansions[i] ? "?" : expansions[i]) : compiled.sql;
+        return new BoundQuery(sql, parameters, aligned, hibSession.getFactory().getJdbcServices().getDialect());
+    }
+
+    private static CompiledQuery compile(javax.persistence.Query query, SessionImplementor hibSession) {
+        String hql = query.unwrap(org.hibernate.query.Query.class).getQueryString();
+        return nativeQueries.apply(new QueryKey(hibSession.getFactory(), hql, hibSession.getLoadQueryInfluencers()));
+    }
+
+    /**
+     * Adds the columns of the value: one for a basic value, the identifier's for an
+     * entity, and the properties' for a component.
+     */
+    private static void flatten(String name, Type type, Object value, boolean bound, SessionImplementor session, List<BoundQuery.Parameter> out) {
+        if (bound && null != type && type.isEntityType() && null != value) {
+            EntityType entityType = (EntityType) type;
+            try {
+                value = ForeignKeys.getEntityIdentifierIfNotUnsaved(entityType.getAssociatedEntityName(), value, session);
+                type = entityType.getIdentifierOrUniqueKeyType(session.getFactory());
+            } catch (HibernateException e) {
+                bound = false;
+            }
+        }
+        if (null != type && type.isComponentType()) {
+            CompositeType composite = (CompositeType) type;
+            Type[] subtypes = composite.getSubtypes();
+            Object[] values = bound && null != value ? composite.getPropertyValues(value, session) : new Object[subtypes.length];
+            for (int i = 0; i < subtypes.length; i++) {
+                flatten(name, subtypes[i], values[i], bound, session, out);
+            }
+            return;
+        }
+        out.add(new BoundQuery.Parameter(name, type, bound ? value : null, bound));
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder("?");
+        for (int i = 1; i < count; i++) {
+            sb.append(", ?");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the hits, misses and evictions of the translation cache
+     */
+    public static Memo.Stats getNativeQueryCacheStats() {
+        return nativeQueries.stats();
+    }
+
+    /**
+     * Sets the number of translated queries kept, dropping the ones cached so far.
+     * @param size
+     * <br><br><i>Default: 1000</i>
+     */
+    public static void setNativeQueryCacheSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be a positive number");
+        }
+        nativeQueries = nativeQueryCache(size);
+    }
+
+    /**
+     * Drops all cached translations. The entries of a closed session factory do not keep
+     * it reachable, but are only dropped once evicted or cleared.
+     */
+    public static void clearNativeQueryCache() {
+        nativeQueries.invalidateAll();
+    }
+
+    private static CompiledQuery translate(QueryKey key) {
+        SessionFactoryImplementor sessionFactory = key.sessionFactory.get();
+        QueryTranslator trans = factory.createQueryTranslator("", key.hql, key.filters, sessionFactory, null);
         trans.compile(Collections.EMPTY_MAP, false);
-        return trans.getSQLString();
+        List<ParameterSpecification> specifications = trans instanceof QueryTranslatorImpl
+                ? ((QueryTranslatorImpl) trans).getCollectedParameterSpecifications()
+                : Collections.emptyList();
+        Slot[] slots = new Slot[specifications.size()];
+        int span = 0;
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(specifications.get(i), key.filters, sessionFactory);
+            span += slots[i].span;
+        }
+        key.filters = null;
+        String sql = trans.getSQLString();
+        int placeholders = BoundQuery.countPlaceholders(sql);
+        return new CompiledQuery(sql, slots, placeholders, trans instanceof QueryTranslatorImpl && span == placeholders);
+    }
+
+    /**
+     * A cached translation: the SQL and the parameters of its placeholders.
+     */
+    private static final class CompiledQuery {
+        private final String sql;
+        private final Slot[] slots;
+        private final int placeholders;
+        /**
+         * Whether the slots account for every placeholder.
+         */
+        private final boolean aligned;
+
+        private CompiledQuery(String sql, Slot[] slots, int placeholders, boolean aligned) {
+            this.sql = sql;
+            this.slots = slots;
+            this.placeholders = placeholders;
+            this.aligned = aligned;
+        }
+    }
+
+    /**
+     * One parameter of a translation, which covers one placeholder per column of its
+     * type.
+     */
+    private static final class Slot {
+        private static final Object UNBOUND = new Object();
+        private static final Object UNREADABLE = new Object();
+
+        private final String name;
+        /**
+         * The parameter name, the position, or the qualified filter parameter name.
+         */
+        private final String namedParameter;
+        private final int position;
+        private final String filterParameter;
+        private final Type type;
+        private final int span;
+
+        private Slot(ParameterSpecification specification, Map<String, Filter> filters, SessionFactoryImplementor sessionFactory) {
+            String named = null;
+            int pos = -1;
+            String filter = null;
+            this.type = specification.getExpectedType();
+            if (specification instanceof NamedParameterSpecification) {
+                named = ((NamedParameterSpecification) specification).getName();
+            } else if (specification instanceof PositionalParameterSpecification) {
+                pos = ((PositionalParameterSpecification) specification).getHqlPosition();
+            } else if (specification instanceof DynamicFilterParameterSpecification && null != type) {
+                filter = filterParameter(type, filters);
+            }
+            this.namedParameter = named;
+            this.position = pos;
+            this.filterParameter = filter;
+            this.name = null != named ? ":" + named : pos >= 0 ? "?" + pos : null != filter ? ":" + filter : "?";
+            int columns = 1;
+            if (null != type) {
+                try {
+                    columns = Math.max(1, type.getColumnSpan(sessionFactory));
+                } catch (HibernateException e) {
+                    columns = 1;
+                }
+            }
+            this.span = columns;
+        }
+
+        /**
+         * @return the qualified name of the only parameter of the enabled filters that has
+         *         the type, or null if there is none or more than one
+         */
+        private static String filterParameter(Type type, Map<String, Filter> filters) {
+            String match = null;
+            for (Map.Entry<String, Filter> filter : filters.entrySet()) {
+                for (String parameter : filter.getValue().getFilterDefinition().getParameterNames()) {
+                    if (type.equals(filter.getValue().getFilterDefinition().getParameterType(parameter))) {
+                        if (null != match) {
+                            return null;
+                        }
+                        match = filter.getKey() + "." + parameter;
+                    }
+                }
+            }
+            return match;
+        }
+
+        /**
+         * @return the bound value, a collection for a list-valued parameter,
+         *         {@link #UNBOUND}, or {@link #UNREADABLE} for a bound parameter whose
+         *         value the query does not expose
+         */
+        private Object value(org.hibernate.query.Query<?> query, SessionImplementor session) {
+            QueryParameter<?> parameter;
+            try {
+                if (null != namedParameter) {
+                    parameter = query.getParameterMetadata().getQueryParameter(namedParameter);
+                } else if (position >= 0) {
+                    parameter = query.getParameterMetadata().getQueryParameter(Integer.valueOf(position));
+                } else if (null != filterParameter) {
+                    Object value = session.getLoadQueryInfluencers().getFilterParameterValue(filterParameter);
+                    return null == value ? UNBOUND : value;
+                } else {
+                    return UNBOUND;
+                }
+                if (null == parameter || !query.isBound(parameter)) {
+                    return UNBOUND;
+                }
+            } catch (RuntimeException e) {
+                // Not found; left as a placeholder
+                return UNBOUND;
+            }
+            try {
+                return query.getParameterValue(parameter);
+            } catch (RuntimeException e) {
+                // Bound to a list, which only the parameter bindings expose
+                return listValue(query, parameter);
+            }
+        }
+
+        /**
+         * Reads the values of a parameter bound to a list. As the parameter is bound, its
+         * list binding already exists and looking it up does not change the query. The
+         * lookup is deprecated, but Hibernate 5.2 has no other way to read the values.
+         */
+        @SuppressWarnings("deprecation")
+        private static Object listValue(org.hibernate.query.Query<?> query, QueryParameter<?> parameter) {
+            if (query instanceof AbstractProducedQuery) {
+                try {
+                    Collection<?> values = ((AbstractProducedQuery<?>) query).getQueryParameterBindings()
+                            .getQueryParameterListBinding(parameter).getBindValues();
+                    if (null != values) {
+                        return values;
+                    }
+                } catch (RuntimeException e) {
+                    // Not exposed after all
+                }
+            }
+            return UNREADABLE;
+        }
+    }
+
+    /**
+     * Identifies a translation: the session factory, held weakly so that cached entries
+     * do not keep a closed factory reachable, the HQL, and the names of the enabled
+     * filters with the sizes of their list-valued parameters, which change the number of
+     * placeholders. Other filter parameter values do not change the SQL.
+     */
+    private static final class QueryKey {
+        private final WeakReference<SessionFactoryImplementor> sessionFactory;
+        private final String hql;
+        /**
+         * The sizes of the list-valued parameters of each enabled filter, by filter name.
+         */
+        private final Map<String, Map<String, Integer>> filterParameters;
+        /**
+         * The session's enabled filters, only kept until the query is translated so that
+         * cached keys do not hold on to the session's filters.
+         */
+        private Map<String, Filter> filters;
+        private final int hash;
+
+        private QueryKey(SessionFactoryImplementor sessionFactory, String hql, LoadQueryInfluencers influencers) {
+            this.sessionFactory = new WeakReference<>(sessionFactory);
+            this.hql = hql;
+            Map<String, Filter> enabled = influencers.getEnabledFilters();
+            this.filters = enabled.isEmpty() ? Collections.emptyMap() : new HashMap<>(enabled);
+            this.filterParameters = enabled.isEmpty() ? Collections.emptyMap() : new HashMap<>();
+            for (Map.Entry<String, Filter> filter : enabled.entrySet()) {
+                Map<String, Integer> sizes = Collections.emptyMap();
+                for (String parameter : filter.getValue().getFilterDefinition().getParameterNames()) {
+                    Object value = influencers.getFilterParameterValue(filter.getKey() + "." + parameter);
+                    if (value instanceof Collection) {
+                        sizes = sizes.isEmpty() ? new HashMap<>() : sizes;
+                        sizes.put(parameter, ((Collection<?>) value).size());
+                    }
+                }
+                filterParameters.put(filter.getKey(), sizes);
+            }
+            this.hash = 31 * (31 * System.identityHashCode(sessionFactory) + hql.hashCode()) + filterParameters.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) obj;
+            SessionFactoryImplementor factory = sessionFactory.get();
+            return hash == other.hash && null != factory && factory == other.sessionFactory.get() && hql.equals(other.hql)
+                    && filterParameters.equals(other.filterParameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 }
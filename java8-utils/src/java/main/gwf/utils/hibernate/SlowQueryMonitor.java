@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2019 BTS-IT, Inc. All Rights Reserved.
+ * The source code for this program is not published or otherwise divested of
+ * its trade secrets, irrespective of what has been deposited with the U.S.
+ * Copyright Office.
+ */
+package gwf.utils.hibernate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import gwf.functional.Memo;
+import gwf.utils.diagnostics.CallStackAnalyzer;
+import gwf.utils.diagnostics.LatencyHistogram;
+import gwf.utils.diagnostics.Metrics;
+import gwf.utils.diagnostics.MetricsSink;
+
+/**
+ * Description: Times every statement executed by the sessions it is attached to, in a
+ * {@link LatencyHistogram} per normalized statement: the SQL with literals replaced by
+ * <code>?</code>, <code>IN</code> lists collapsed and whitespace squeezed, so that the
+ * same query with different values is counted once.<br>
+ * <br>
+ * Statements slower than the threshold are logged with the application frames that ran
+ * them, found with a {@link CallStackAnalyzer}. A statement executed many times in one
+ * session, the usual sign of lazy loading in a loop (N+1 queries), is logged once per
+ * session when it reaches the repetition threshold.<br>
+ * <br>
+ * Attach it with {@link #openSession(SessionFactory)}, or pass a {@link #tracker(SessionFactory)}
+ * to both <code>statementInspector</code> and <code>eventListeners</code> of a session
+ * builder. Executions are also published to {@link Metrics} as timers of the group
+ * {@value #METRICS_GROUP}.
+ * <br>
+ */
+public final class SlowQueryMonitor {
+    private static final Logger LOG = LogManager.getLogger(SlowQueryMonitor.class);
+    /**
+     * The {@link Metrics} group of the executions.
+     */
+    public static final String METRICS_GROUP = "sql";
+    /**
+     * Where executions of JDBC batches are recorded; a batch may be executed after other
+     * statements were prepared, so it cannot be attributed to one.
+     */
+    public static final String BATCH = "[batch]";
+    /**
+     * Where statements beyond the maximum number are recorded.
+     */
+    public static final String OTHER = "[other]";
+    private static final int MAX_NORMALIZED = 1000;
+    /**
+     * Placeholders separated by commas, as in <code>IN</code> lists of any length.
+     */
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\?(?: ?, ?\\?)+");
+
+    private final long slowThreshold;
+    private final int repetitionThreshold;
+    private final int maxStatements;
+    private final CallStackAnalyzer callSite;
+    private final Consumer<SlowQuery> onSlowQuery;
+    private final Map<String, LatencyHistogram> statements = new ConcurrentHashMap<>();
+    private final Memo<String, String> normalized = Memo.<String, String>builder(SlowQueryMonitor::normalize)
+            .maximumSize(MAX_NORMALIZED)
+            .build();
+    private final LongAdder slowQueries = new LongAdder();
+    private final LongAdder repeatedQueries = new LongAdder();
+
+    private SlowQueryMonitor(BuilderImpl builder) {
+        this.slowThreshold = builder.slowThreshold;
+        this.repetitionThreshold = builder.repetitionThreshold;
+        this.maxStatements = builder.maxStatements;
+        this.callSite = builder.callSite;
+        this.onSlowQuery = builder.onSlowQuery;
+    }
+
+    /**
+     * Opens a session of the factory with a new {@link Tracker} attached.
+     * @param sessionFactory
+     * @return
+     */
+    public Session openSession(SessionFactory sessionFactory) {
+        Tracker tracker = tracker(sessionFactory);
+        return sessionFactory.withOptions().statementInspector(tracker).eventListeners(tracker).openSession();
+    }
+
+    /**
+     * @param sessionFactory the factory the session will be opened from, whose own
+     *        statement inspector, if any, is still applied
+     * @return a tracker for one session
+     */
+    public Tracker tracker(SessionFactory sessionFactory) {
+        StatementInspector inspector = sessionFactory.unwrap(SessionFactoryImplementor.class).getSessionFactoryOptions().getStatementInspector();
+        return new Tracker(this, inspector);
+    }
+
+    /**
+     * @return the durations of every normalized statement executed so far, in
+     *         nanoseconds, sorted by statement
+     */
+    public Map<String, LatencyHistogram.Snapshot> getStats() {
+        Map<String, LatencyHistogram.Snapshot> stats = new TreeMap<>();
+        statements.forEach((sql, histogram) -> stats.put(sql, histogram.snapshot()));
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * @return the number of executions that reached the slow threshold
+     */
+    public long getSlowQueries() {
+        return slowQueries.sum();
+    }
+
+    /**
+     * @return the number of times a statement reached the repetition threshold in a
+     *         session
+     */
+    public long getRepeatedQueries() {
+        return repeatedQueries.sum();
+    }
+
+    /**
+     * Drops all statistics.
+     */
+    public void reset() {
+        statements.clear();
+        slowQueries.reset();
+        repeatedQueries.reset();
+    }
+
+    private void executed(String sql, String statement, long nanos) {
+        String key = statement;
+        LatencyHistogram histogram = statements.get(key);
+        if (null == histogram) {
+            key = statements.size() < maxStatements ? statement : OTHER;
+            histogram = statements.computeIfAbsent(key, s -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+        if (Metrics.isEnabled()) {
+            // Under the same capped key, so that sinks see no more names than the stats
+            Metrics.publish(METRICS_GROUP, key, MetricsSink.Kind.TIMER, nanos);
+        }
+        if (slowThreshold > 0 && nanos >= slowThreshold) {
+            slowQueries.increment();
+            String site = callSite();
+            LOG.warn("Slow query took {} ms: {}\n  at {}", nanos / 1_000_000, sql, site);
+            if (null != onSlowQuery) {
+                try {
+                    onSlowQuery.accept(new SlowQuery(sql, statement, nanos, site));
+                } catch (RuntimeException e) {
+                    LOG.error("Slow query handler exception", e);
+                }
+            }
+        }
+    }
+
+    private void repeated(String statement, int executions) {
+        repeatedQueries.increment();
+        LOG.warn("Possible N+1 queries: executed {} times in one session: {}\n  at {}", executions, statement, callSite());
+    }
+
+    private String callSite() {
+        StringBuilder sb = new StringBuilder();
+        callSite.appendTo(sb);
+        return sb.toString();
+    }
+
+    /**
+     * @return the statement with string and numeric literals, including signs and
+     *         exponents, replaced by <code>?</code>, lists of placeholders collapsed to
+     *         one, and whitespace squeezed; quoted identifiers are kept as they are
+     */
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int length = sql.length();
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // Skip to the closing quote; a doubled quote is part of the literal
+                int end = i + 1;
+                while (end < length) {
+                    if (sql.charAt(end) == '\'') {
+                        if (end + 1 < length && sql.charAt(end + 1) == '\'') {
+                            end++;
+                        } else {
+                            break;
+                        }
+                    }
+                    end++;
+                }
+                sb.append('?');
+                i = end;
+            } else if (c == '"' || c == '`') {
+                int end = sql.indexOf(c, i + 1);
+                end = end < 0 ? length - 1 : end;
+                sb.append(sql, i, end + 1);
+                i = end;
+            } else if ((c == '-' || c == '+') && i + 1 < length && Character.isDigit(sql.charAt(i + 1)) && !isOperand(sb)) {
+                // A sign, not an operator, as nothing precedes it that it could apply to
+                i = endOfNumber(sql, i + 1);
+                sb.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierPart(sb)) {
+                i = endOfNumber(sql, i);
+                sb.append('?');
+            } else if (Character.isWhitespace(c)) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+                    sb.append(' ');
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return PLACEHOLDER_LIST.matcher(sb).replaceAll("?").trim();
+    }
+
+    /**
+     * @return the index of the last character of the number starting at the index
+     */
+    private static int endOfNumber(String sql, int start) {
+        int length = sql.length();
+        int i = start;
+        while (i + 1 < length && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) {
+            i++;
+        }
+        if (i + 2 < length && (sql.charAt(i + 1) == 'e' || sql.charAt(i + 1) == 'E')) {
+            int exponent = i + 2;
+            if ((sql.charAt(exponent) == '-' || sql.charAt(exponent) == '+') && exponent + 1 < length) {
+                exponent++;
+            }
+            if (Character.isDigit(sql.charAt(exponent))) {
+                i = exponent;
+                while (i + 1 < length && Character.isDigit(sql.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return whether the last significant character ends an operand, so that a
+     *         following <code>-</code> or <code>+</code> is an operator
+     */
+    private static boolean isOperand(StringBuilder sb) {
+        int last = sb.length() - 1;
+        if (last >= 0 && sb.charAt(last) == ' ') {
+            last--;
+        }
+        if (last < 0) {
+            return false;
+        }
+        char previous = sb.charAt(last);
+        return Character.isLetterOrDigit(previous) || previous == '_' || previous == '$' || previous == ')' || previous == '?'
+                || previous == '"' || previous == '`';
+    }
+
+    private static boolean isIdentifierPart(StringBuilder sb) {
+        if (0 == sb.length()) {
+            return false;
+        }
+        char previous = sb.charAt(sb.length() - 1);
+        return Character.isLetterOrDigit(previous) || previous == '_' || previous == '$';
+    }
+
+    /**
+     * Description: Attaches a {@link SlowQueryMonitor} to one session, which it must not
+     * be shared with. It is both the session's statement inspector, which tells it the SQL
+     * of each statement, and a session event listener, which tells it when statements
+     * execute.
+     * <br>
+     */
+    public static final class Tracker extends BaseSessionEventListener implements StatementInspector {
+        private static final long serialVersionUID = 1L;
+
+        private final SlowQueryMonitor monitor;
+        private final StatementInspector delegate;
+        /**
+         * The SQL of the statement last prepared.
+         */
+        private String sql = null;
+        private long start = 0;
+        private long batchStart = 0;
+        /**
+         * Executions per normalized statement in this session.
+         */
+        private final Map<String, int[]> executions = new HashMap<>();
+
+        private Tracker(SlowQueryMonitor monitor, StatementInspector delegate) {
+            this.monitor = monitor;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String inspect(String sql) {
+            String inspected = null == delegate ? sql : delegate.inspect(sql);
+            this.sql = null == inspected ? sql : inspected;
+            return inspected;
+        }
+
+        @Override
+        public void jdbcExecuteStatementStart() {
+            start = System.nanoTime();
+        }
+
+        @Override
+        public void jdbcExecuteStatementEnd() {
+            long nanos = System.nanoTime() - start;
+            if (null == sql) {
+                return;
+            }
+            String statement = monitor.normalized.apply(sql);
+            monitor.executed(sql, statement, nanos);
+            if (monitor.repetitionThreshold > 0) {
+                int[] count = executions.computeIfAbsent(statement, s -> new int[1]);
+                if (++count[0] == monitor.repetitionThreshold) {
+                    monitor.repeated(statement, count[0]);
+                }
+            }
+        }
+
+        @Override
+        public void jdbcExecuteBatchStart() {
+            batchStart = System.nanoTime();
+        }
+
+        @Override
+        public void jdbcExecuteBatchEnd() {
+            monitor.executed(BATCH, BATCH, System.nanoTime() - batchStart);
+        }
+
+        @Override
+        public void end() {
+            executions.clear();
+        }
+    }
+
+    /**
+     * Description: One execution that reached the slow threshold.
+     * <br>
+     */
+    public static final class SlowQuery {
+        private final String sql;
+        private final String normalizedSql;
+        private final long nanos;
+        private final String callSite;
+
+        private SlowQuery(String sql, String normalizedSql, long nanos, String callSite) {
+            this.sql = sql;
+            this.normalizedSql = normalizedSql;
+            this.nanos = nanos;
+            this.callSite = callSite;
+        }
+
+        /**
+         * @return the SQL as executed, with <code>?</code> placeholders
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        public String getNormalizedSql() {
+            return normalizedSql;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the application frames that executed the statement, as formatted by
+         *         the monitor's {@link CallStackAnalyzer}
+         */
+        public String getCallSite() {
+            return callSite;
+        }
+
+        @Override
+        public String toString() {
+            return nanos / 1_000_000 + " ms: " + sql + " at " + callSite;
+        }
+    }
+
+    public static Builder builder() {
+        return new BuilderImpl();
+    }
+
+    public static interface Builder {
+        /**
+         * Log executions that take at least this long; 0 to not log any.<br><br>
+         * <i>Default: 1 second</i>
+         * @param threshold
+         * @param unit
+         * @return
+         */
+        Builder slowThreshold(long threshold, TimeUnit unit);
+
+        /**
+         * Log a statement executed this many times in one session; 0 to not detect
+         * repetitions.<br><br>
+         * <i>Default: 10</i>
+         * @param executions
+         * @return
+         */
+        Builder repetitionThreshold(int executions);
+
+        /**
+         * The number of distinct normalized statements to keep statistics of; further
+         * statements are recorded under {@link SlowQueryMonitor#OTHER}.<br><br>
+         * <i>Default: 1000</i>
+         * @param maxStatements
+         * @return
+         */
+        Builder maxStatements(int maxStatements);
+
+        /**
+         * Finds the call site logged with slow and repeated statements.<br><br>
+         * <i>Default: the first 5 frames outside of Hibernate, the JDK and this library</i>
+         * @param callSite
+         * @return
+         */
+        Builder callSite(CallStackAnalyzer callSite);
+
+        /**
+         * Also hand slow executions to the handler, e.g. to capture their plans. It is
+         * called on the thread that executed the statement.
+         * @param handler
+         * @return
+         */
+        Builder onSlowQuery(Consumer<SlowQuery> handler);
+
+        SlowQueryMonitor build();
+    }
+
+    private static class BuilderImpl implements Builder {
+        private static final String[] FRAMEWORK = { "org.hibernate.", "java.", "javax.", "jdk.", "sun.", "com.sun.", "gwf.utils.hibernate.", "gwf.utils.diagnostics." };
+
+        private long slowThreshold = TimeUnit.SECONDS.toNanos(1);
+        private int repetitionThreshold = 10;
+        private int maxStatements = 1000;
+        private CallStackAnalyzer callSite = null;
+        private Consumer<SlowQuery> onSlowQuery = null;
+
+        @Override
+        public Builder slowThreshold(long threshold, TimeUnit unit) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("threshold must not be negative");
+            }
+            this.slowThreshold = Objects.requireNonNull(unit).toNanos(threshold);
+            return this;
+        }
+
+        @Override
+        public Builder repetitionThreshold(int executions) {
+            if (executions < 0) {
+                throw new IllegalArgumentException("executions must not be negative");
+            }
+            this.repetitionThreshold = executions;
+            return this;
+        }
+
+        @Override
+        public Builder maxStatements(int maxStatements) {
+            if (maxStatements <= 0) {
+                throw new IllegalArgumentException("maxStatements must be a positive number");
+            }
+            this.maxStatements = maxStatements;
+            return this;
+        }
+
+        @Override
+        public Builder callSite(CallStackAnalyzer callSite) {
+            this.callSite = Objects.requireNonNull(callSite);
+            return this;
+        }
+
+        @Override
+        public Builder onSlowQuery(Consumer<SlowQuery> handler) {
+            this.onSlowQuery = Objects.requireNonNull(handler);
+            return this;
+        }
+
+        @Override
+        public SlowQueryMonitor build() {
+            if (null == callSite) {
+                callSite = CallStackAnalyzer.builder()
+                        .filter(className -> {
+                            for (String prefix : FRAMEWORK) {
+                                if (className.startsWith(prefix)) {
+                                    return false;
+                                }
+                            }
+                            return true;
+                        })
+                        .limit(5)
+                        .joinWith("\n  at ")
+                        .build();
+            }
+            return new SlowQueryMonitor(this);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package gwf.utils.listener;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gwf.utils.diagnostics.LatencyHistogram;
+import gwf.utils.diagnostics.Metrics;
+import gwf.utils.diagnostics.MetricsSink;
+
+/**
+ * Description: Dispatch instrumentation of a {@link ListenerManager}, enabled with
+ * {@link ListenerManager.Builder#metrics()}. Counts notifications per event, and
+ * invocations, exceptions and latencies both per event and per listener class, and logs
+ * listeners that exceed the slow-listener threshold.<br>
+ * <br>
+ * Listeners are keyed by class, so every lambda or method reference created at the same
+ * place in the source shares one entry, which outlives its registrations. Counters are
+ * looked up once per registration, not per delivery; recording a delivery does not
+ * allocate.<br>
+ * <br>
+ * While a {@link MetricsSink} is added to {@link Metrics}, notifications are also
+ * published as counters of the group <code>event</code>, and invocations as timers of the
+ * group <code>listener</code>, named by listener class.
+ * <br>
+ * @param <T> The type of the event id
+ */
+public final class DispatchMetrics<T> {
+    private static final Logger LOG = LogManager.getLogger(DispatchMetrics.class);
+    static final String EVENT_GROUP = "event";
+    static final String LISTENER_GROUP = "listener";
+
+    private final ConcurrentMap<T, Counters> events = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counters> listeners = new ConcurrentHashMap<>();
+    /**
+     * In nanoseconds, or 0 to not log slow listeners.
+     */
+    private final long slowThreshold;
+
+    DispatchMetrics(long slowThreshold) {
+        this.slowThreshold = slowThreshold;
+    }
+
+    static final class Counters {
+        private final LongAdder notifications = new LongAdder();
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder exceptions = new LongAdder();
+        private final LongAdder slow = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private void invoked(long nanos, boolean failed, boolean slow) {
+            invocations.increment();
+            latency.record(nanos);
+            if (failed) {
+                exceptions.increment();
+            }
+            if (slow) {
+                this.slow.increment();
+            }
+        }
+
+        private Stats snapshot() {
+            return new Stats(notifications.sum(), invocations.sum(), exceptions.sum(), slow.sum(), latency.snapshot());
+        }
+    }
+
+    /**
+     * @return the counters shared by every listener of the same class
+     */
+    Counters listenerCounters(Object listener) {
+        return counters(listeners, listener.getClass().getName());
+    }
+
+    void notified(T event) {
+        counters(events, event).notifications.increment();
+        if (Metrics.isEnabled()) {
+            Metrics.publish(EVENT_GROUP, String.valueOf(event), MetricsSink.Kind.COUNTER, 1);
+        }
+    }
+
+    /**
+     * Records one listener invocation, logging it if it was slow.
+     */
+    void invoked(T event, Registration<T, ?> registration, long nanos, boolean failed) {
+        boolean slow = slowThreshold > 0 && nanos >= slowThreshold;
+        counters(events, event).invoked(nanos, failed, slow);
+        registration.counters.invoked(nanos, failed, slow);
+        if (Metrics.isEnabled()) {
+            Metrics.publish(LISTENER_GROUP, registration.listenerClass, MetricsSink.Kind.TIMER, nanos);
+        }
+        if (slow) {
+            LOG.warn("Slow listener {} took {} ms on event {}", registration.listenerClass, nanos / 1_000_000, event);
+        }
+    }
+
+    private static <K> Counters counters(ConcurrentMap<K, Counters> map, K key) {
+        Counters counters = map.get(key);
+        return null == counters ? map.computeIfAbsent(key, k -> new Counters()) : counters;
+    }
+
+    Snapshot<T> snapshot() {
+        Map<T, Stats> eventStats = new LinkedHashMap<>();
+        events.forEach((event, counters) -> eventStats.put(event, counters.snapshot()));
+        Map<String, Stats> listenerStats = new LinkedHashMap<>();
+        listeners.forEach((listener, counters) -> listenerStats.put(listener, counters.snapshot()));
+        return new Snapshot<>(eventStats, listenerStats);
+    }
+
+    /**
+     * Description: The counts of one event or listener class at the time of a
+     * {@link Snapshot}. Latencies are of single listener invocations, in nanoseconds.
+     * <br>
+     */
+    public static final class Stats {
+        private final long notifications;
+        private final long invocations;
+        private final long exceptions;
+        private final long slowInvocations;
+        private final LatencyHistogram.Snapshot latency;
+
+        private Stats(long notifications, long invocations, long exceptions, long slowInvocations, LatencyHistogram.Snapshot latency) {
+            this.notifications = notifications;
+            this.invocations = invocations;
+            this.exceptions = exceptions;
+            this.slowInvocations = slowInvocations;
+            this.latency = latency;
+        }
+
+        /**
+         * @return how often the event was delivered; always 0 for a listener class
+         */
+        public long getNotifications() {
+            return notifications;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        public long getExceptions() {
+            return exceptions;
+        }
+
+        /**
+         * @return the invocations that reached the slow-listener threshold
+         */
+        public long getSlowInvocations() {
+            return slowInvocations;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return "notifications=" + notifications + ", invocations=" + invocations + ", exceptions=" + exceptions
+                    + ", slow=" + slowInvocations + ", latency=[" + latency + "]";
+        }
+    }
+
+    /**
+     * Description: A copy of the counters of a {@link ListenerManager}, taken by
+     * {@link ListenerManager#metrics()}.
+     * <br>
+     * @param <T> The type of the event id
+     */
+    public static final class Snapshot<T> {
+        private static final Snapshot<?> EMPTY = new Snapshot<>(Collections.emptyMap(), Collections.emptyMap());
+
+        private final Map<T, Stats> events;
+        private final Map<String, Stats> listeners;
+
+        private Snapshot(Map<T, Stats> events, Map<String, Stats> listeners) {
+            this.events = Collections.unmodifiableMap(events);
+            this.listeners = Collections.unmodifiableMap(listeners);
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> Snapshot<T> empty() {
+            return (Snapshot<T>) EMPTY;
+        }
+
+        /**
+         * @return the counts of every event delivered so far
+         */
+        public Map<T, Stats> getEvents() {
+            return events;
+        }
+
+        /**
+         * @return the counts of every listener class registered so far, by class name
+         */
+        public Map<String, Stats> getListeners() {
+            return listeners;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package gwf.utils.listener;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Description: Decides where and in which order a {@link ListenerManager} runs the
+ * listeners of an event. In every strategy the first listener exception (in listener
+ * order) is the one reported, and every exception is logged.
+ * <ul>
+ * <li>{@link #synchronous()} - on the notifying thread, one after another (the
+ * default).</li>
+ * <li>{@link #async(Executor)} - one task on the executor, which runs the listeners one
+ * after another.</li>
+ * <li>{@link #parallel(Executor)} - one task per listener.</li>
+ * <li>{@link #orderedPerEvent(Executor)} - like async, but deliveries of the same event
+ * key never overlap and run in notification order.</li>
+ * </ul>
+ * <br>
+ */
+public abstract class DispatchStrategy {
+    private static final DispatchStrategy SYNCHRONOUS = new DispatchStrategy() {
+        @Override
+        <T, E> CompletableFuture<Void> dispatch(ListenerManager<T, E> manager, T event, Registration<T, E>[] listeners) {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            complete(result, manager.invokeAll(event, listeners));
+            return result;
+        }
+        @Override
+        boolean isSynchronous() {
+            return true;
+        }
+    };
+
+    /**
+     * Only the built-in strategies are supported.
+     */
+    DispatchStrategy() {
+    }
+
+    /**
+     * Runs the listeners.
+     * @return a future completed when every listener has run, exceptionally with the first
+     *         listener exception
+     */
+    abstract <T, E> CompletableFuture<Void> dispatch(ListenerManager<T, E> manager, T event, Registration<T, E>[] listeners);
+
+    /**
+     * @return true if {@link #dispatch} has completed its future by the time it returns
+     */
+    boolean isSynchronous() {
+        return false;
+    }
+
+    /**
+     * Runs listeners on the notifying thread. {@link ListenerManager#notify(Object)}
+     * rethrows the first listener exception.
+     * @return
+     */
+    public static DispatchStrategy synchronous() {
+        return SYNCHRONOUS;
+    }
+
+    /**
+     * Runs all of an event's listeners, one after another, in a single task on the
+     * executor.
+     * @param executor
+     * @return
+     */
+    public static DispatchStrategy async(Executor executor) {
+        Objects.requireNonNull(executor);
+        return new DispatchStrategy() {
+            @Override
+            <T, E> CompletableFuture<Void> dispatch(ListenerManager<T, E> manager, T event, Registration<T, E>[] listeners) {
+                return submit(executor, () -> manager.invokeAll(event, listeners));
+            }
+        };
+    }
+
+    /**
+     * Runs each listener of an event in its own task on the executor, so slow listeners
+     * do not delay each other.
+     * @param executor
+     * @return
+     */
+    public static DispatchStrategy parallel(Executor executor) {
+        Objects.requireNonNull(executor);
+        return new DispatchStrategy() {
+            @Override
+            <T, E> CompletableFuture<Void> dispatch(ListenerManager<T, E> manager, T event, Registration<T, E>[] listeners) {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<Void>[] tasks = (CompletableFuture<Void>[]) new CompletableFuture<?>[listeners.length];
+                for (int i = 0; i < listeners.length; i++) {
+                    Registration<T, E> listener = listeners[i];
+                    tasks[i] = submit(executor, () -> manager.invoke(event, listener));
+                }
+                return allOf(tasks);
+            }
+        };
+    }
+
+    /**
+     * Runs all of an event's listeners in a single task on the executor, but never runs
+     * two deliveries of the same event key at once: they are queued and delivered in the
+     * order in which they were notified. Deliveries of different keys run concurrently.
+     * A strategy instance keeps one queue per event key it has seen.
+     * @param executor
+     * @return
+     */
+    public static DispatchStrategy orderedPerEvent(Executor executor) {
+        Objects.requireNonNull(executor);
+        return new DispatchStrategy() {
+            private final ConcurrentHashMap<Object, SerialExecutor> queues = new ConcurrentHashMap<>();
+
+            @Override
+            <T, E> CompletableFuture<Void> dispatch(ListenerManager<T, E> manager, T event, Registration<T, E>[] listeners) {
+                SerialExecutor queue = queues.computeIfAbsent(event, key -> new SerialExecutor(executor));
+                return submit(queue, () -> manager.invokeAll(event, listeners));
+            }
+        };
+    }
+
+    /**
+     * Runs the task on the executor.
+     * @param task returns the exception to report, or null
+     */
+    private static CompletableFuture<Void> submit(Executor executor, Supplier<Throwable> task) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    complete(result, task.get());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                    throw t;
+                }
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return a future completed when all of the given futures are, exceptionally with the
+     *         first failure in array order
+     */
+    static CompletableFuture<Void> allOf(CompletableFuture<Void>[] futures) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        CompletableFuture.allOf(futures).whenComplete((v, t) -> complete(result, firstFailure(futures)));
+        return result;
+    }
+
+    static void complete(CompletableFuture<Void> result, Throwable failure) {
+        if (null == failure) {
+            result.complete(null);
+        } else {
+            result.completeExceptionally(failure);
+        }
+    }
+
+    private static Throwable firstFailure(CompletableFuture<Void>[] tasks) {
+        for (CompletableFuture<Void> task : tasks) {
+            Throwable failure = failureOf(task);
+            if (null != failure) {
+                return failure;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the exception a completed future failed with, or null
+     */
+    static Throwable failureOf(CompletableFuture<Void> future) {
+        if (future.isCompletedExceptionally()) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                return null == e.getCause() ? e : e.getCause();
+            } catch (CancellationException e) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs tasks one at a time, in submission order, on an underlying executor.
+     */
+    private static final class SerialExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final Executor executor;
+
+        private SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            try {
+                schedule();
+            } catch (RuntimeException e) {
+                tasks.remove(task);
+                throw e;
+            }
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RuntimeException e) {
+                    draining.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                Runnable task;
+                while (null != (task = tasks.poll())) {
+                    task.run();
+                }
+            } finally {
+                draining.set(false);
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package gwf.utils.listener;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ListenerManager} for enum events. Listeners are stored in an array indexed by
+ * the event's ordinal instead of a hash map, so finding an event's listeners during
+ * {@link #notify(Object) notify} is a single array load.<br>
+ * <br>
+ * Other options are available through
+ * <code>ListenerManager.builder(controller).enumKeys(type)</code>.
+ * <br>
+ * @param T The enum type of the event id
+ * @param E The type of Consumer listeners being managed
+ */
+public class EnumListenerManager<T extends Enum<T>, E> extends ListenerManager<T, E> {
+    /**
+     * Constructor.
+     *
+     * @param eventType
+     * @param controller
+     * @throws NullPointerException if eventType or controller is <code>null</code>
+     */
+    public EnumListenerManager(final Class<T> eventType, final E controller) {
+        super(ListenerManager.<T, E>builder(controller).enumKeys(Objects.requireNonNull(eventType)));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param eventType
+     * @param controller
+     * @param logger a Listener&lt;eventType&gt; which runs just before the listeners to that event
+     * @throws NullPointerException if eventType or controller is <code>null</code>
+     */
+    public EnumListenerManager(final Class<T> eventType, final E controller, final Consumer<T> logger) {
+        super(ListenerManager.<T, E>builder(controller).enumKeys(Objects.requireNonNull(eventType)).logger(logger));
+    }
+}
@@ -1,31 +1,142 @@
 package gwf.utils.listener;
 
 import java.io.PrintStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import gwf.utils.diagnostics.CallStackAnalyzer;
+import gwf.utils.diagnostics.StackFrames;
+import gwf.utils.diagnostics.StackProfile;
 
 /**
  * Listener Manager provides a centralized place to handle Listeners.
  * <br>
+ * <br>
+ * Thread-safe. Each event's listeners are held in an array that is replaced, never
+ * modified, when listeners are added or removed, so {@link #notify(Object) notify} walks
+ * an immutable snapshot without locking or allocating, while registration changes are
+ * serialized on a private lock.
+ * <br>
+ * <br>
+ * Every registration returns a {@link Subscription} that removes the listener in constant
+ * time. Listeners may also be registered to remove themselves after one or N deliveries,
+ * or be held weakly so that they are removed once collected instead of leaking.
+ * {@link #on(Object)} and {@link #onPattern(String)} add priorities, filters on the
+ * controller, and hierarchical wildcard topics such as <code>save.*</code>. Wildcard
+ * registrations are merged into each matching event's array when registrations change,
+ * or when an event is first seen, so dispatch is still a flat array walk.
+ * <br>
+ * <br>
+ * Listeners run on the notifying thread unless a different {@link DispatchStrategy} is
+ * configured through {@link #builder(Object)}.<br>
+ * <br>
+ * For bulk operations that fire the same events many times, the builder can enable
+ * coalescing: notifications are queued and each distinct event is delivered once per
+ * {@link #flush()}, which is either explicit or scheduled after a time window. Batch
+ * listeners ({@link #addBatch(Consumer)}) receive the flushed events as one list.
+ * <br>
+ * <br>
+ * The builder can also enable {@link #metrics() metrics}: per-event and per-listener
+ * counts, latency histograms and a slow-listener warning.
+ * <br>
  * @param T The type of the event id <em>(typically String or an enum)</em>
  * @param E The type of Consumer listeners being managed
  * @author gforbis created at Jun 20, 2019
  */
 public class ListenerManager<T, E> {
     private final static Logger LOG = LogManager.getLogger(ListenerManager.class);
-    private final Map<T, List<Consumer<E>>> eventListeners = new HashMap<>();
+    private final ListenerTable<T, Registration<T, E>[]> eventListeners;
+    /**
+     * Serializes the copy-on-write updates of {@link #eventListeners}.
+     */
+    private final Object registrationLock = new Object();
+    /**
+     * Cancelled registrations not yet dropped from {@link #eventListeners}.
+     */
+    private final Queue<Registration<T, E>> cancelledRegistrations = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingPurges = new AtomicInteger();
+    private static final int PURGE_THRESHOLD = 32;
+    /**
+     * Weakly held listeners are enqueued here once collected.
+     */
+    private final ReferenceQueue<Consumer<E>> collected = new ReferenceQueue<>();
+    /**
+     * Registrations made with {@link #onPattern(String)}, in invocation order. These are
+     * also merged into the arrays of every matching event in {@link #eventListeners}, so
+     * this is only read for events that have no entry there.
+     */
+    private volatile Registration<T, E>[] patternListeners = Registration.none();
+    /**
+     * Events notified while no pattern matched them, so that notifying them again is a
+     * set lookup rather than a pattern scan. Bounded by {@link #MAX_MISSES}, and cleared
+     * whenever a pattern is registered.
+     */
+    private final Set<T> misses = ConcurrentHashMap.newKeySet();
+    private static final int MAX_MISSES = 1024;
+    /**
+     * Incremented before {@link #misses} is cleared, so that a miss computed against an
+     * older set of patterns is not kept.
+     */
+    private volatile int patternVersion = 0;
+    /**
+     * Orders registrations of equal priority. Guarded by {@link #registrationLock}.
+     */
+    private long registrationSequence = 0;
     private final Consumer<T> eventLogger;
+    private final DispatchStrategy dispatchStrategy;
+    private volatile Consumer<List<T>>[] batchListeners = noListeners();
+    /**
+     * Null unless enabled with {@link Builder#metrics()}.
+     */
+    private final DispatchMetrics<T> metrics;
+    
+    /**
+     * True if notifications are queued until the next {@link #flush()}.
+     */
+    private final boolean coalescing;
+    /**
+     * Schedules a flush {@link #coalesceWindow} nanoseconds after the first queued event.
+     * If null, only explicit flushes deliver.
+     */
+    private final ScheduledExecutorService flushScheduler;
+    private final long coalesceWindow;
+    /**
+     * The events queued since the last flush, or null. Guarded by {@link #pendingLock}.
+     */
+    private Batch<T> pending = null;
+    private final Object pendingLock = new Object();
+    
+    private static final class Batch<T> {
+        private final Set<T> events = new LinkedHashSet<>();
+        /**
+         * Created on demand for {@link ListenerManager#notifyAsync(Object)}.
+         */
+        private CompletableFuture<Void> done = null;
+    }
     
     /**
      * The object upon which event handlers operate.
@@ -40,8 +151,7 @@ public class ListenerManager<T, E> {
      * @throws NullPointerException if controller is <code>null</code>
      */
     public ListenerManager(final E controller) {
-        this.controller = Objects.requireNonNull(controller);
-        eventLogger = null;
+        this(new BuilderImpl<T, E>(controller));
     }
     
     /**
@@ -52,105 +162,958 @@ public class ListenerManager<T, E> {
      * @throws NullPointerException if controller is <code>null</code>
      */
     public ListenerManager(final E controller, final Consumer<T> logger) {
-        this.controller = Objects.requireNonNull(controller);
-        eventLogger = logger;
+        this(new BuilderImpl<T, E>(controller).logger(logger));
+    }
+    
+    /**
+     * Constructor for subclasses that preset builder options.
+     * @param builder a builder from {@link #builder(Object)}
+     */
+    ListenerManager(final Builder<T, E> builder) {
+        this((BuilderImpl<T, E>) builder);
+    }
+    
+    private ListenerManager(final BuilderImpl<T, E> builder) {
+        this.eventListeners = null == builder.enumType ? ListenerTable.hashed() : ListenerTable.indexed(builder.enumType);
+        this.controller = builder.controller;
+        this.eventLogger = builder.eventLogger;
+        this.dispatchStrategy = builder.dispatchStrategy;
+        this.coalescing = builder.coalescing;
+        this.flushScheduler = builder.flushScheduler;
+        this.coalesceWindow = builder.coalesceWindow;
+        this.metrics = builder.metrics ? new DispatchMetrics<>(builder.slowThreshold) : null;
     }
 
     /**
      * Adds a listener for the given event.
      * @param event
      * @param listener
+     * @return a handle that removes the listener in constant time
      * @throws NullPointerException if either event or listener is <code>null</code>
      */
-    public void add(final T event, Consumer<E>listener) {
-        getListeners(Objects.requireNonNull(event)).add(Objects.requireNonNull(listener));
+    public Subscription add(final T event, Consumer<E>listener) {
+        return on(event).add(listener);
     }
     
     /**
-     * Removes a listener from any and all events.
+     * Adds a listener for the given event that removes itself after it has been invoked
+     * the given number of times.
+     * @param event
+     * @param listener
+     * @param times
+     * @return a handle that removes the listener in constant time
+     * @throws NullPointerException if either event or listener is <code>null</code>
+     * @throws IllegalArgumentException if times is less than 1
+     */
+    public Subscription add(final T event, final Consumer<E> listener, final int times) {
+        return on(event).times(times).add(listener);
+    }
+    
+    /**
+     * Adds a listener for the given event that removes itself after it has been invoked
+     * once.
+     * @param event
+     * @param listener
+     * @return a handle that removes the listener in constant time
+     * @throws NullPointerException if either event or listener is <code>null</code>
+     */
+    public Subscription once(final T event, final Consumer<E> listener) {
+        return on(event).times(1).add(listener);
+    }
+    
+    /**
+     * Adds a listener for the given event that is only weakly held, and is removed
+     * automatically once it has been garbage collected. The caller must keep a strong
+     * reference to the listener for as long as it should receive events, typically in a
+     * field of the object that handles them; a lambda that nothing else references may be
+     * collected at any time.
+     * @param event
+     * @param listener
+     * @return a handle that removes the listener in constant time
+     * @throws NullPointerException if either event or listener is <code>null</code>
+     */
+    public Subscription addWeak(final T event, final Consumer<E> listener) {
+        return on(event).weak().add(listener);
+    }
+    
+    /**
+     * Starts a registration for the given event, for options beyond those of
+     * {@link #add(Object, Consumer) add}.
+     * @param event
+     * @return
+     * @throws NullPointerException if event is <code>null</code>
+     */
+    public SubscriptionBuilder<E> on(final T event) {
+        return new SubscriptionBuilderImpl(Objects.requireNonNull(event), null);
+    }
+    
+    /**
+     * Starts a registration for every event whose topic matches the pattern, such as
+     * <code>save.*</code>. Topics are split into segments on <code>'.'</code>;
+     * <code>*</code> matches exactly one segment and <code>**</code> any number of
+     * segments. An event's topic is its name if it is an enum, otherwise its
+     * <code>toString()</code>.
+     * @param pattern
+     * @return
+     * @throws NullPointerException if pattern is <code>null</code>
+     */
+    public SubscriptionBuilder<E> onPattern(final String pattern) {
+        return new SubscriptionBuilderImpl(null, new TopicPattern(pattern));
+    }
+    
+    /**
+     * Options for a single listener registration.
+     */
+    public static interface SubscriptionBuilder<E> {
+        /**
+         * Listeners with higher priorities are invoked first; listeners of equal priority
+         * are invoked in registration order.<br><br>
+         * <i>Default: 0</i>
+         * @param priority
+         * @return
+         */
+        SubscriptionBuilder<E> priority(int priority);
+        /**
+         * Only invoke the listener when the controller passes the filter. The filter is
+         * tested before each delivery, and filtered deliveries do not count towards
+         * {@link #times(int) times}.<br><br>
+         * <i>Default: none</i>
+         * @param filter
+         * @return
+         */
+        SubscriptionBuilder<E> filter(Predicate<? super E> filter);
+        /**
+         * Remove the listener after it has been invoked this many times.<br><br>
+         * <i>Default: unlimited</i>
+         * @param times
+         * @return
+         */
+        SubscriptionBuilder<E> times(int times);
+        /**
+         * Hold the listener weakly; see {@link ListenerManager#addWeak(Object, Consumer)}.<br><br>
+         * <i>Default: strongly held</i>
+         * @return
+         */
+        SubscriptionBuilder<E> weak();
+        /**
+         * Registers the listener.
+         * @param listener
+         * @return a handle that removes the listener in constant time
+         * @throws NullPointerException if listener is <code>null</code>
+         */
+        Subscription add(Consumer<E> listener);
+    }
+    
+    private class SubscriptionBuilderImpl implements SubscriptionBuilder<E> {
+        private final T event;
+        private final TopicPattern pattern;
+        private int priority = 0;
+        private Predicate<? super E> filter = null;
+        private int times = 0;
+        private boolean weak = false;
+        
+        private SubscriptionBuilderImpl(final T event, final TopicPattern pattern) {
+            this.event = event;
+            this.pattern = pattern;
+        }
+        @Override
+        public SubscriptionBuilder<E> priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+        @Override
+        public SubscriptionBuilder<E> filter(Predicate<? super E> filter) {
+            this.filter = Objects.requireNonNull(filter);
+            return this;
+        }
+        @Override
+        public SubscriptionBuilder<E> times(int times) {
+            if (times < 1) {
+                throw new IllegalArgumentException("times must be a positive number");
+            }
+            this.times = times;
+            return this;
+        }
+        @Override
+        public SubscriptionBuilder<E> weak() {
+            weak = true;
+            return this;
+        }
+        @Override
+        public Subscription add(Consumer<E> listener) {
+            Objects.requireNonNull(listener);
+            synchronized (registrationLock) {
+                Registration<T, E> registration = new Registration<>(ListenerManager.this, event, pattern, listener, priority,
+                        ++registrationSequence, filter, times, weak ? collected : null,
+                        null == metrics ? null : metrics.listenerCounters(listener));
+                register(registration);
+                return registration;
+            }
+        }
+    }
+    
+    /**
+     * Adds the registration to the dispatch table. Must hold {@link #registrationLock}.
+     */
+    private void register(final Registration<T, E> registration) {
+        expungeCollected();
+        if (null == registration.pattern) {
+            Registration<T, E>[] ll = eventListeners.get(registration.event);
+            eventListeners.put(registration.event, insert(null == ll ? matching(registration.event) : ll, registration));
+        } else {
+            patternListeners = insert(patternListeners, registration);
+            patternVersion++;
+            misses.clear();
+            eventListeners.forEachKey(event -> {
+                if (registration.pattern.matches(event)) {
+                    eventListeners.put(event, insert(eventListeners.get(event), registration));
+                }
+            });
+        }
+    }
+    
+    /**
+     * @return a copy of the array with the registration inserted in invocation order
+     */
+    private static <T, E> Registration<T, E>[] insert(final Registration<T, E>[] ll, final Registration<T, E> registration) {
+        int index = ll.length;
+        while (index > 0 && registration.precedes(ll[index - 1])) {
+            index--;
+        }
+        Registration<T, E>[] updated = Registration.newArray(ll.length + 1);
+        System.arraycopy(ll, 0, updated, 0, index);
+        updated[index] = registration;
+        System.arraycopy(ll, index, updated, index + 1, ll.length - index);
+        return updated;
+    }
+    
+    /**
+     * @return the active pattern registrations the event matches, in invocation order
+     */
+    private Registration<T, E>[] matching(final T event) {
+        return matching(event, patternListeners);
+    }
+    
+    /**
+     * Splits the event's topic once and matches it against each of the patterns.
+     */
+    private static <T, E> Registration<T, E>[] matching(final T event, final Registration<T, E>[] patterns) {
+        Registration<T, E>[] ll = Registration.none();
+        if (0 == patterns.length) {
+            return ll;
+        }
+        String[] topic = TopicPattern.segmentsOf(event);
+        for (Registration<T, E> registration : patterns) {
+            if (registration.isActive() && registration.pattern.matches(topic)) {
+                ll = insert(ll, registration);
+            }
+        }
+        return ll;
+    }
+    
+    /**
+     * Builds the dispatch table entry for an event that has none yet, from the pattern
+     * registrations it matches. The entry is kept so that later notifications of the
+     * event are a plain lookup again. Events no pattern matches are remembered in the
+     * bounded {@link #misses} instead, so that they neither take the lock nor grow the
+     * table, and are not matched again until a pattern is registered.
+     */
+    private Registration<T, E>[] compile(final T event) {
+        if (misses.contains(event)) {
+            return Registration.none();
+        }
+        int version = patternVersion;
+        Registration<T, E>[] patterns = patternListeners;
+        Registration<T, E>[] matched = matching(event, patterns);
+        if (0 == matched.length) {
+            if (misses.size() < MAX_MISSES) {
+                misses.add(event);
+                if (version != patternVersion) {
+                    misses.remove(event);
+                }
+            }
+            return matched;
+        }
+        synchronized (registrationLock) {
+            Registration<T, E>[] ll = eventListeners.get(event);
+            if (null == ll) {
+                ll = patterns == patternListeners ? matched : matching(event);
+                if (0 != ll.length) {
+                    eventListeners.put(event, ll);
+                }
+            }
+            return ll;
+        }
+    }
+    
+    /**
+     * Removes a listener from any and all events, including pattern registrations.
      * @param listener
      */
     public void remove(final Consumer<E> listener) {
-        eventListeners.values().forEach(listenerList -> listenerList.remove(listener));
-        eventListeners.entrySet().removeIf(e -> e.getValue().isEmpty());
+        synchronized (registrationLock) {
+            eventListeners.forEachKey(event -> remove(event, listener));
+            boolean removed = false;
+            for (Registration<T, E> registration : patternListeners) {
+                if (registration.isActive() && Objects.equals(registration.listener(), listener)) {
+                    registration.deactivate();
+                    removed = true;
+                }
+            }
+            if (removed) {
+                purgePatterns();
+            }
+        }
     }
     
     /**
-     * Removes a listener from the specified event.
+     * Removes a listener from the specified event. Pattern registrations are not affected.
      * @param event
      * @param listener
      */
     public void remove(final T event, final Consumer<E> listener) {
-        List<Consumer<E>> ll = eventListeners.get(event);
-        if (null != ll) {
-            ll.remove(listener);
-            if (ll.isEmpty()) {
-                eventListeners.remove(event);
+        if (null == event) {
+            return;
+        }
+        synchronized (registrationLock) {
+            Registration<T, E>[] ll = eventListeners.get(event);
+            if (null != ll) {
+                for (Registration<T, E> registration : ll) {
+                    if (null == registration.pattern && registration.isActive() && Objects.equals(registration.listener(), listener)) {
+                        registration.deactivate();
+                        purge(event);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Called once when a registration is cancelled. The registration is already skipped
+     * by dispatch, so it is only queued here and dropped from the listener arrays in bulk,
+     * which keeps cancellation constant time on average.
+     */
+    void cancelled(final Registration<T, E> registration) {
+        cancelledRegistrations.add(registration);
+        if (pendingPurges.incrementAndGet() >= PURGE_THRESHOLD) {
+            synchronized (registrationLock) {
+                purgeCancelled();
+            }
+        }
+    }
+    
+    /**
+     * Cancels the registrations whose weakly held listeners have been collected. Must hold
+     * {@link #registrationLock}.
+     */
+    private void expungeCollected() {
+        Reference<? extends Consumer<E>> ref;
+        while (null != (ref = collected.poll())) {
+            ((Registration.ListenerRef<?, ?>) ref).registration.cancel();
+        }
+        if (pendingPurges.get() > 0) {
+            purgeCancelled();
+        }
+    }
+    
+    /**
+     * Drops all queued cancelled registrations from the listener arrays. Must hold
+     * {@link #registrationLock}.
+     */
+    private void purgeCancelled() {
+        pendingPurges.set(0);
+        Set<T> events = new HashSet<>();
+        boolean patterns = false;
+        Registration<T, E> registration;
+        while (null != (registration = cancelledRegistrations.poll())) {
+            if (null == registration.pattern) {
+                events.add(registration.event);
+            } else {
+                patterns = true;
+            }
+        }
+        if (patterns) {
+            purgePatterns();
+        } else {
+            events.forEach(this::purge);
+        }
+    }
+    
+    /**
+     * Drops inactive pattern registrations, which may appear in every event's listener
+     * array. Must hold {@link #registrationLock}.
+     */
+    private void purgePatterns() {
+        patternListeners = active(patternListeners);
+        eventListeners.forEachKey(this::purge);
+    }
+    
+    /**
+     * Rebuilds an event's listener array without its inactive registrations. Must hold
+     * {@link #registrationLock}.
+     */
+    private void purge(final T event) {
+        Registration<T, E>[] ll = eventListeners.get(event);
+        if (null == ll) {
+            return;
+        }
+        Registration<T, E>[] updated = active(ll);
+        if (0 == updated.length) {
+            eventListeners.remove(event);
+        } else if (updated != ll) {
+            eventListeners.put(event, updated);
+        }
+    }
+    
+    /**
+     * @return the array itself if all of its registrations are active, else a copy
+     *         without the inactive ones
+     */
+    private static <T, E> Registration<T, E>[] active(final Registration<T, E>[] ll) {
+        int active = 0;
+        for (Registration<T, E> registration : ll) {
+            active += registration.isActive() ? 1 : 0;
+        }
+        if (active == ll.length) {
+            return ll;
+        }
+        Registration<T, E>[] updated = Registration.newArray(active);
+        int i = 0;
+        for (Registration<T, E> registration : ll) {
+            if (registration.isActive()) {
+                updated[i++] = registration;
             }
         }
+        return updated;
     }
     
     /**
      * For each listener of the given event, invokes the handler with the
-     * {@link #controller controller}.
+     * {@link #controller controller}, according to the {@link DispatchStrategy}.<br>
+     * <br>
+     * With the synchronous strategy, every listener has run when this returns, and the
+     * first exception is rethrown after all of them have run. With any other strategy,
+     * listener exceptions are only logged; use {@link #notifyAsync(Object)} to observe
+     * them. An exception from the event logger is always rethrown.<br>
+     * <br>
+     * When coalescing, the event is only queued until the next {@link #flush()}.
      * 
      * @param event
      * @throws NullPointerException if event is <code>null</code>
      */
     public void notify(final T event) {
-        Exception ex = null;
+        Exception ex = logEvent(Objects.requireNonNull(event));
+        if (coalescing) {
+            enqueue(event, false);
+        } else {
+            Registration<T, E>[] ll = listenersOf(event);
+            if (dispatchStrategy.isSynchronous()) {
+                Exception listenerEx = invokeAll(event, ll);
+                ex = null == ex ? listenerEx : ex;
+            } else {
+                dispatchStrategy.dispatch(this, event, ll);
+            }
+            if (batchListeners.length > 0) {
+                Exception batchEx = invokeBatch(Collections.singletonList(event));
+                ex = null == ex ? batchEx : ex;
+            }
+        }
+        if(null != ex) {
+            rethrow(ex);
+        }
+    }
+    
+    /**
+     * Like {@link #notify(Object)}, but returns a future that completes when every
+     * listener has run. It completes exceptionally with the first exception, which is the
+     * event logger's if it threw, or else the first failing listener's in listener order.
+     * When coalescing, the future completes when the queued event has been flushed, with
+     * the first exception of that whole flush.
+     * 
+     * @param event
+     * @return
+     * @throws NullPointerException if event is <code>null</code>
+     */
+    public CompletableFuture<Void> notifyAsync(final T event) {
+        Exception ex = logEvent(Objects.requireNonNull(event));
+        CompletableFuture<Void> result;
+        if (coalescing) {
+            result = enqueue(event, true);
+        } else {
+            result = dispatchStrategy.dispatch(this, event, listenersOf(event));
+            if (batchListeners.length > 0) {
+                result = DispatchStrategy.allOf(array(result, completed(invokeBatch(Collections.singletonList(event)))));
+            }
+        }
+        if (null == ex) {
+            return result;
+        }
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        result.whenComplete((v, t) -> failed.completeExceptionally(ex));
+        return failed;
+    }
+    
+    /**
+     * Delivers every event queued since the last flush, once each, in the order in which
+     * they were first notified: first each event to its listeners according to the
+     * {@link DispatchStrategy}, then the list of events to the batch listeners, on this
+     * thread. With the synchronous strategy, the first exception is rethrown after
+     * everything has run. Does nothing unless coalescing.
+     */
+    public void flush() {
+        Batch<T> batch;
+        synchronized (pendingLock) {
+            batch = pending;
+            pending = null;
+        }
+        if (null == batch) {
+            return;
+        }
+        List<T> events = Collections.unmodifiableList(new ArrayList<>(batch.events));
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Void>[] deliveries = (CompletableFuture<Void>[]) new CompletableFuture<?>[events.size() + 1];
+        int i = 0;
+        for (T event : events) {
+            deliveries[i++] = dispatchStrategy.dispatch(this, event, listenersOf(event));
+        }
+        deliveries[i] = completed(invokeBatch(events));
+        CompletableFuture<Void> result = DispatchStrategy.allOf(deliveries);
+        if (null != batch.done) {
+            result.whenComplete((v, t) -> DispatchStrategy.complete(batch.done, t));
+        }
+        if (dispatchStrategy.isSynchronous()) {
+            Throwable ex = DispatchStrategy.failureOf(result);
+            if (null != ex) {
+                rethrow(ex);
+            }
+        }
+    }
+    
+    /**
+     * Adds a listener that receives, in one call, the list of events delivered by each
+     * {@link #flush()}, or a single-element list per notification when not coalescing.
+     * @param listener
+     * @throws NullPointerException if listener is <code>null</code>
+     */
+    public void addBatch(final Consumer<List<T>> listener) {
+        Objects.requireNonNull(listener);
+        synchronized (registrationLock) {
+            Consumer<List<T>>[] bl = Arrays.copyOf(batchListeners, batchListeners.length + 1);
+            bl[bl.length - 1] = listener;
+            batchListeners = bl;
+        }
+    }
+    
+    /**
+     * Removes a batch listener.
+     * @param listener
+     */
+    public void removeBatch(final Consumer<List<T>> listener) {
+        synchronized (registrationLock) {
+            int index = indexOf(batchListeners, listener);
+            if (index >= 0) {
+                Consumer<List<T>>[] bl = newArray(batchListeners.length - 1);
+                System.arraycopy(batchListeners, 0, bl, 0, index);
+                System.arraycopy(batchListeners, index + 1, bl, index, bl.length - index);
+                batchListeners = bl;
+            }
+        }
+    }
+    
+    /**
+     * Queues the event for the next flush, scheduling one if a coalescing window is
+     * configured and none is pending.
+     * @param track whether the caller wants a future for the flush
+     * @return the flush's future if tracked, else null
+     */
+    private CompletableFuture<Void> enqueue(final T event, final boolean track) {
+        boolean schedule = false;
+        CompletableFuture<Void> done = null;
+        synchronized (pendingLock) {
+            if (null == pending) {
+                pending = new Batch<>();
+                schedule = null != flushScheduler;
+            }
+            pending.events.add(event);
+            if (track) {
+                if (null == pending.done) {
+                    pending.done = new CompletableFuture<>();
+                }
+                done = pending.done;
+            }
+        }
+        if (schedule) {
+            try {
+                flushScheduler.schedule(this::scheduledFlush, coalesceWindow, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.error("Coalesced flush rejected; events wait for an explicit flush", e);
+            }
+        }
+        return done;
+    }
+    
+    private void scheduledFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Already logged by the failing listener
+        }
+    }
+    
+    /**
+     * Runs the event logger, if any, on the notifying thread.
+     * @return the logger's exception, or null
+     */
+    private Exception logEvent(final T event) {
         if (null != eventLogger) {
             try {
                 eventLogger.accept(event);
             } catch (Exception e) {
-                ex = null == ex ? e : ex;
                 LOG.error("Event logger exception", e);
+                return e;
             }
         }
-        for (Consumer<E> listener : getListeners(Objects.requireNonNull(event))) {
+        return null;
+    }
+    
+    /**
+     * Looks up the listeners for one delivery of the event.
+     */
+    private Registration<T, E>[] listenersOf(final T event) {
+        if (null != metrics) {
+            metrics.notified(event);
+        }
+        Registration<T, E>[] ll = eventListeners.get(event);
+        if (null == ll) {
+            return 0 == patternListeners.length ? Registration.none() : compile(event);
+        }
+        return ll;
+    }
+    
+    /**
+     * Invokes the batch listeners one after another on this thread.
+     * @return the first exception, or null
+     */
+    private Exception invokeBatch(final List<T> events) {
+        Exception ex = null;
+        for (Consumer<List<T>> listener : batchListeners) {
             try {
-                listener.accept(controller);
+                listener.accept(events);
             } catch (Exception e) {
+                LOG.error("Batch handler exception", e);
                 ex = null == ex ? e : ex;
-                LOG.error("Event handler exception", e);
             }
         }
-        if(null != ex) {
-            if (ex instanceof RuntimeException) {
-                throw (RuntimeException) ex;
-            } else {
-                throw new RuntimeException(ex);
+        return ex;
+    }
+    
+    private static CompletableFuture<Void> completed(final Exception ex) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        DispatchStrategy.complete(result, ex);
+        return result;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<Void>[] array(final CompletableFuture<Void> first, final CompletableFuture<Void> second) {
+        return (CompletableFuture<Void>[]) new CompletableFuture<?>[] { first, second };
+    }
+    
+    private static void rethrow(final Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        } else {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Invokes the listeners one after another.
+     * @return the first exception, or null
+     */
+    Exception invokeAll(final T event, final Registration<T, E>[] ll) {
+        Exception ex = null;
+        for (Registration<T, E> registration : ll) {
+            Exception e = invoke(event, registration);
+            ex = null == ex ? e : ex;
+        }
+        return ex;
+    }
+    
+    /**
+     * Invokes the listener with the {@link #controller controller}, logging any exception,
+     * unless the registration is no longer active.
+     * @return the exception, or null
+     */
+    Exception invoke(final T event, final Registration<T, E> registration) {
+        if (!registration.isActive()) {
+            return null;
+        }
+        Consumer<E> listener;
+        try {
+            if (!registration.accepts(controller)) {
+                return null;
             }
+            listener = registration.acquire();
+            if (null == listener) {
+                return null;
+            }
+        } catch (Exception e) {
+            LOG.error("Event handler exception", e);
+            return e;
+        }
+        long start = null == metrics ? 0 : System.nanoTime();
+        Exception ex = null;
+        try {
+            listener.accept(controller);
+        } catch (Exception e) {
+            ex = e;
+        }
+        if (null != metrics) {
+            metrics.invoked(event, registration, System.nanoTime() - start, null != ex);
+        }
+        if (null != ex) {
+            LOG.error("Event handler exception", ex);
         }
+        return ex;
+    }
+    
+    /**
+     * @return the dispatch counts so far, empty unless enabled with
+     *         {@link Builder#metrics()}
+     */
+    public DispatchMetrics.Snapshot<T> metrics() {
+        return null == metrics ? DispatchMetrics.Snapshot.empty() : metrics.snapshot();
     }
     
     /**
      * Immediately removes all listeners; 
      */
     public void dispose() {
-        eventListeners.clear();
+        synchronized (registrationLock) {
+            eventListeners.forEachKey(event -> {
+                for (Registration<T, E> registration : eventListeners.get(event)) {
+                    registration.deactivate();
+                }
+            });
+            for (Registration<T, E> registration : patternListeners) {
+                registration.deactivate();
+            }
+            patternListeners = Registration.none();
+            patternVersion++;
+            misses.clear();
+            eventListeners.clear();
+            cancelledRegistrations.clear();
+            pendingPurges.set(0);
+            batchListeners = noListeners();
+        }
+        Batch<T> batch;
+        synchronized (pendingLock) {
+            batch = pending;
+            pending = null;
+        }
+        if (null != batch && null != batch.done) {
+            batch.done.complete(null);
+        }
+    }
+    
+    public static <T, E> Builder<T, E> builder(final E controller) {
+        return new BuilderImpl<>(controller);
+    }
+    
+    public static interface Builder<T, E> {
+        /**
+         * A Listener&lt;eventType&gt; which runs on the notifying thread just before the
+         * listeners to that event.<br><br>
+         * <i>Default: none</i>
+         * @param logger
+         * @return
+         */
+        Builder<T, E> logger(Consumer<T> logger);
+        /**
+         * Where and in which order listeners run.<br><br>
+         * <i>Default: {@link DispatchStrategy#synchronous()}</i>
+         * @param strategy
+         * @return
+         */
+        Builder<T, E> dispatch(DispatchStrategy strategy);
+        /**
+         * Store listeners in an array indexed by the event's ordinal instead of a hash
+         * map. The event type must be an enum; see also {@link EnumListenerManager}.<br><br>
+         * <i>Default: hashed</i>
+         * @param enumType
+         * @return
+         * @throws IllegalArgumentException if enumType is not an enum
+         */
+        Builder<T, E> enumKeys(Class<T> enumType);
+        /**
+         * Queue notifications until {@link ListenerManager#flush()} is called, delivering
+         * each distinct event only once per flush.<br><br>
+         * <i>Default: off</i>
+         * @return
+         */
+        Builder<T, E> coalesce();
+        /**
+         * Queue notifications and flush them automatically <code>window</code> after the
+         * first one, delivering each distinct event only once per flush.
+         * {@link ListenerManager#flush()} may still be called at any time.<br><br>
+         * <i>Default: off</i>
+         * @param window
+         * @param unit
+         * @param scheduler runs the automatic flushes
+         * @return
+         */
+        Builder<T, E> coalesce(long window, TimeUnit unit, ScheduledExecutorService scheduler);
+        /**
+         * Count notifications, listener invocations, exceptions and latencies per event and
+         * per listener class; see {@link ListenerManager#metrics()}. The counts are also
+         * published to {@link gwf.utils.diagnostics.Metrics Metrics} while it has sinks. Costs two
+         * <code>System.nanoTime()</code> calls and a few atomic increments per invocation.<br><br>
+         * <i>Default: off</i>
+         * @return
+         */
+        Builder<T, E> metrics();
+        /**
+         * Log a warning naming the listener's class whenever a single invocation takes at
+         * least this long. Enables {@link #metrics()}.<br><br>
+         * <i>Default: off</i>
+         * @param threshold
+         * @param unit
+         * @return
+         * @throws IllegalArgumentException if threshold is not positive
+         */
+        Builder<T, E> slowListenerThreshold(long threshold, TimeUnit unit);
+        ListenerManager<T, E> build();
+    }
+    
+    private static class BuilderImpl<T, E> implements Builder<T, E> {
+        private final E controller;
+        private Consumer<T> eventLogger = null;
+        private DispatchStrategy dispatchStrategy = DispatchStrategy.synchronous();
+        private boolean coalescing = false;
+        private ScheduledExecutorService flushScheduler = null;
+        private Class<T> enumType = null;
+        private long coalesceWindow = 0;
+        private boolean metrics = false;
+        private long slowThreshold = 0;
+        
+        /**
+         * @throws NullPointerException if controller is <code>null</code>
+         */
+        private BuilderImpl(final E controller) {
+            this.controller = Objects.requireNonNull(controller);
+        }
+        @Override
+        public BuilderImpl<T, E> logger(Consumer<T> logger) {
+            eventLogger = logger;
+            return this;
+        }
+        @Override
+        public BuilderImpl<T, E> dispatch(DispatchStrategy strategy) {
+            dispatchStrategy = Objects.requireNonNull(strategy);
+            return this;
+        }
+        @Override
+        public BuilderImpl<T, E> enumKeys(Class<T> enumType) {
+            if (!enumType.isEnum()) {
+                throw new IllegalArgumentException(enumType.getName() + " is not an enum");
+            }
+            this.enumType = enumType;
+            return this;
+        }
+        @Override
+        public BuilderImpl<T, E> coalesce() {
+            coalescing = true;
+            flushScheduler = null;
+            return this;
+        }
+        @Override
+        public BuilderImpl<T, E> coalesce(long window, TimeUnit unit, ScheduledExecutorService scheduler) {
+            if (window < 0) {
+                throw new IllegalArgumentException("window must not be negative");
+            }
+            coalescing = true;
+            coalesceWindow = Objects.requireNonNull(unit).toNanos(window);
+            flushScheduler = Objects.requireNonNull(scheduler);
+            return this;
+        }
+        @Override
+        public BuilderImpl<T, E> metrics() {
+            metrics = true;
+            return this;
+        }
+        @Override
+        public BuilderImpl<T, E> slowListenerThreshold(long threshold, TimeUnit unit) {
+            if (threshold <= 0) {
+                throw new IllegalArgumentException("threshold must be a positive number");
+            }
+            metrics = true;
+            slowThreshold = Objects.requireNonNull(unit).toNanos(threshold);
+            return this;
+        }
+        @Override
+        public ListenerManager<T, E> build() {
+            return new ListenerManager<>(this);
+        }
+    }
+    
+    private static final Consumer<?>[] NO_LISTENERS = new Consumer<?>[0];
+    
+    @SuppressWarnings("unchecked")
+    private static <E> Consumer<E>[] noListeners() {
+        return (Consumer<E>[]) NO_LISTENERS;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <E> Consumer<E>[] newArray(int length) {
+        return (Consumer<E>[]) new Consumer<?>[length];
     }
     
     /**
-     * @param event
-     * @return
+     * @return the index of the first listener equal to the given one, or -1
      */
-    private List<Consumer<E>> getListeners(final T event) {
-        if (! eventListeners.containsKey(event)) {
-            eventListeners.put(event, new ArrayList<>());
+    private static <E> int indexOf(Consumer<E>[] ll, Consumer<E> listener) {
+        for (int i = 0; i < ll.length; i++) {
+            if (Objects.equals(ll[i], listener)) {
+                return i;
+            }
         }
-        return eventListeners.get(event);
+        return -1;
     }
     
-    private static final Predicate<StackTraceElement> fnNotAnonymous = e -> e.getClassName().indexOf('$') == -1 && e.getMethodName().indexOf('$') == -1;
+    private static final BiPredicate<String, String> fnNotAnonymous = (className, methodName) -> className.indexOf('$') == -1 && methodName.indexOf('$') == -1;
+    /**
+     * Frames of this package are the notify machinery, not the origin of the event.
+     */
+    private static final String LISTENER_PACKAGE = ListenerManager.class.getPackage().getName() + ".";
+    private static final BiPredicate<String, String> fnOrigin = fnNotAnonymous.and((className, methodName) -> !className.startsWith(LISTENER_PACKAGE));
+    private static final int MAX_CACHED_ORIGINS = 1024;
     
     /**
-     * A Logger which looks at the method 
+     * A Logger which prints each event with the method that notified it 
      * @param eventClass
      * @return
      */
     public static <T> Consumer<T> methodNameLogger(Class<T> eventClass) {
-        int index = 3; // 1 is the lambda, 2 is Consumer.accept, 3 is ListenerManger.notify
+        return methodNameLogger(eventClass, 1);
+    }
+    
+    /**
+     * Like {@link #methodNameLogger(Class)}, but only looks up the origin of 1 in
+     * <code>sampleEvery</code> events; the others are printed by name only. The origin is
+     * found by walking the stack only as far as the notifying method, and is formatted
+     * once per call site.
+     * @param eventClass
+     * @param sampleEvery
+     * @return
+     * @throws IllegalArgumentException if sampleEvery is less than 1
+     */
+    public static <T> Consumer<T> methodNameLogger(Class<T> eventClass, int sampleEvery) {
+        AtomicLong events = sampler(sampleEvery);
+        Function<StackTraceElement, String> fnFormat = StackFrames.cached(
+                e -> " -> " + e.getClassName() + "." + e.getMethodName() + "[" + e.getLineNumber() + "]", MAX_CACHED_ORIGINS);
         return event -> {
             PrintStream ps = null;
             String eventName = String.valueOf(event);
@@ -160,18 +1123,36 @@ public class ListenerManager<T, E> {
             } else {
                 ps = System.out;
             }
-            StackTraceElement e = Arrays.stream(Thread.currentThread().getStackTrace()).skip(index).filter(fnNotAnonymous).findFirst().orElse(null);
             String result = null;
-            if (null == e) {
-                result = "Event: " + eventName + " -> origin error";
+            if (!sampled(events, sampleEvery)) {
+                result = "Event: " + eventName;
             } else {
-                result = "Event: " + eventName + " -> " + e.getClassName() + "." + e.getMethodName() + "[" + e.getLineNumber() + "]";
+                StackTraceElement e = StackFrames.find(0, fnOrigin);
+                if (null == e) {
+                    result = "Event: " + eventName + " -> origin error";
+                } else {
+                    result = "Event: " + eventName + fnFormat.apply(e);
+                }
             }
             ps.println(result);
         };
     }
     
     public static <T> Consumer<T> stackLogger(Class<T> eventClass, CallStackAnalyzer csa) {
+        return stackLogger(eventClass, csa, 1);
+    }
+    
+    /**
+     * Like {@link #stackLogger(Class, CallStackAnalyzer)}, but only prints the call stack
+     * of 1 in <code>sampleEvery</code> events; the others are printed by name only.
+     * @param eventClass
+     * @param csa
+     * @param sampleEvery
+     * @return
+     * @throws IllegalArgumentException if sampleEvery is less than 1
+     */
+    public static <T> Consumer<T> stackLogger(Class<T> eventClass, CallStackAnalyzer csa, int sampleEvery) {
+        AtomicLong events = sampler(sampleEvery);
         return event -> {
             PrintStream ps = null;
             String eventName = String.valueOf(event);
@@ -182,10 +1163,38 @@ public class ListenerManager<T, E> {
                 ps = System.out;
             }
             ps.println("Event: " + eventName);
-            csa.sendTo(ps::println);
+            if (sampled(events, sampleEvery)) {
+                csa.sendTo(ps::println);
+            }
         };
     }
     
+    /**
+     * A Logger which prints nothing, but records the call stack of every event in the
+     * profile, below the event's name, to find the code paths that fire each event most
+     * often. Dump the profile with {@link StackProfile#writeCollapsed(Appendable)}.
+     * @param eventClass
+     * @param csa selects and formats the recorded frames
+     * @param profile
+     * @return
+     */
+    public static <T> Consumer<T> profileLogger(Class<T> eventClass, CallStackAnalyzer csa, StackProfile profile) {
+        Objects.requireNonNull(csa);
+        Objects.requireNonNull(profile);
+        return event -> csa.recordTo(profile, String.valueOf(event));
+    }
+    
+    private static AtomicLong sampler(int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be a positive number");
+        }
+        return new AtomicLong();
+    }
+    
+    private static boolean sampled(AtomicLong events, int sampleEvery) {
+        return 1 == sampleEvery || 0 == events.getAndIncrement() % sampleEvery;
+    }
+    
     public static <T> Consumer<T> eventNameLogger(Class<T> eventClass) {
         return event -> {
             PrintStream ps = null;
@@ -0,0 +1,102 @@
+package gwf.utils.listener;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Description: The per-event storage behind a {@link ListenerManager}. Values are
+ * immutable snapshots that are replaced, never modified. Reads may happen on any thread
+ * without locking; writes are serialized by the manager.
+ * <br>
+ * @param <T> The type of the event id
+ * @param <V> The type of the stored snapshot
+ */
+interface ListenerTable<T, V> {
+    /**
+     * @return the snapshot for the event, or null
+     */
+    V get(T event);
+
+    void put(T event, V value);
+
+    void remove(T event);
+
+    void forEachKey(Consumer<T> action);
+
+    void clear();
+
+    /**
+     * A table for any event type, backed by a ConcurrentHashMap.
+     */
+    static <T, V> ListenerTable<T, V> hashed() {
+        return new ListenerTable<T, V>() {
+            private final Map<T, V> map = new ConcurrentHashMap<>();
+
+            @Override
+            public V get(T event) {
+                return map.get(event);
+            }
+            @Override
+            public void put(T event, V value) {
+                map.put(event, value);
+            }
+            @Override
+            public void remove(T event) {
+                map.remove(event);
+            }
+            @Override
+            public void forEachKey(Consumer<T> action) {
+                map.keySet().forEach(action);
+            }
+            @Override
+            public void clear() {
+                map.clear();
+            }
+        };
+    }
+
+    /**
+     * A table for enum events, indexed by ordinal, so that a lookup is a single array
+     * load with no hashing.
+     * @param enumType
+     * @throws IllegalArgumentException if enumType is not an enum
+     */
+    static <T, V> ListenerTable<T, V> indexed(Class<T> enumType) {
+        T[] constants = enumType.getEnumConstants();
+        if (null == constants) {
+            throw new IllegalArgumentException(enumType.getName() + " is not an enum");
+        }
+        return new ListenerTable<T, V>() {
+            private final AtomicReferenceArray<V> table = new AtomicReferenceArray<>(constants.length);
+
+            @Override
+            public V get(T event) {
+                return table.get(((Enum<?>) event).ordinal());
+            }
+            @Override
+            public void put(T event, V value) {
+                table.set(((Enum<?>) event).ordinal(), value);
+            }
+            @Override
+            public void remove(T event) {
+                table.set(((Enum<?>) event).ordinal(), null);
+            }
+            @Override
+            public void forEachKey(Consumer<T> action) {
+                for (T constant : constants) {
+                    if (null != get(constant)) {
+                        action.accept(constant);
+                    }
+                }
+            }
+            @Override
+            public void clear() {
+                for (int i = 0; i < constants.length; i++) {
+                    table.set(i, null);
+                }
+            }
+        };
+    }
+}
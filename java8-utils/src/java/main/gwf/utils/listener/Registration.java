@@ -0,0 +1,183 @@
+package gwf.utils.listener;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Description: A listener as registered with a {@link ListenerManager}, together with the
+ * options it was registered with. The manager's listener arrays hold these rather than
+ * the bare Consumers.
+ * <br>
+ * @param <T> The type of the event id
+ * @param <E> The type of Consumer listeners being managed
+ */
+final class Registration<T, E> implements Subscription {
+    private static final Registration<?, ?>[] NONE = new Registration<?, ?>[0];
+
+    private final ListenerManager<T, E> manager;
+    /**
+     * The event listened to, or null if listening to a {@link #pattern}.
+     */
+    final T event;
+    /**
+     * The topic pattern listened to, or null if listening to a single {@link #event}.
+     */
+    final TopicPattern pattern;
+    /**
+     * Higher priorities are invoked first.
+     */
+    final int priority;
+    /**
+     * Orders registrations of equal priority.
+     */
+    final long sequence;
+    /**
+     * Tested against the controller before each delivery, or null.
+     */
+    private final Predicate<? super E> filter;
+    /**
+     * The listener, or null if it is weakly held.
+     */
+    private final Consumer<E> listener;
+    /**
+     * The weakly held listener, or null if it is strongly held.
+     */
+    private final ListenerRef<T, E> weakListener;
+    /**
+     * The number of deliveries left, or null if unlimited.
+     */
+    private final AtomicInteger remaining;
+    private final AtomicBoolean active = new AtomicBoolean(true);
+    /**
+     * The listener's {@link DispatchMetrics} counters, or null if metrics are off.
+     */
+    final DispatchMetrics.Counters counters;
+    /**
+     * The listener's class name, or null if metrics are off.
+     */
+    final String listenerClass;
+
+    /**
+     * A weak reference that remembers its registration, so that the registration can be
+     * cancelled when the reference is enqueued.
+     */
+    static final class ListenerRef<T, E> extends WeakReference<Consumer<E>> {
+        final Registration<T, E> registration;
+
+        private ListenerRef(Consumer<E> listener, ReferenceQueue<? super Consumer<E>> queue, Registration<T, E> registration) {
+            super(listener, queue);
+            this.registration = registration;
+        }
+    }
+
+    /**
+     * @param event the event, or null when listening to a pattern
+     * @param pattern the topic pattern, or null when listening to an event
+     * @param filter tested before each delivery, or null
+     * @param times the number of deliveries, or 0 for unlimited
+     * @param collected the queue a weakly held listener is enqueued on once collected, or
+     *            null to hold the listener strongly
+     * @param counters the listener's metrics, or null
+     */
+    Registration(ListenerManager<T, E> manager, T event, TopicPattern pattern, Consumer<E> listener, int priority, long sequence,
+            Predicate<? super E> filter, int times, ReferenceQueue<? super Consumer<E>> collected, DispatchMetrics.Counters counters) {
+        this.manager = manager;
+        this.event = event;
+        this.pattern = pattern;
+        this.priority = priority;
+        this.sequence = sequence;
+        this.filter = filter;
+        if (null == collected) {
+            this.listener = listener;
+            this.weakListener = null;
+        } else {
+            this.listener = null;
+            this.weakListener = new ListenerRef<>(listener, collected, this);
+        }
+        this.remaining = times > 0 ? new AtomicInteger(times) : null;
+        this.counters = counters;
+        this.listenerClass = null == counters ? null : listener.getClass().getName();
+    }
+
+    /**
+     * @return the listener, or null if it was weakly held and has been collected
+     */
+    Consumer<E> listener() {
+        return null == weakListener ? listener : weakListener.get();
+    }
+
+    /**
+     * @return true if the controller passes the filter, if any
+     */
+    boolean accepts(E controller) {
+        return null == filter || filter.test(controller);
+    }
+
+    /**
+     * @return true if this registration should be invoked before the other one
+     */
+    boolean precedes(Registration<T, E> other) {
+        return priority > other.priority || (priority == other.priority && sequence < other.sequence);
+    }
+
+    /**
+     * Claims one delivery.
+     * @return the listener to invoke, or null if this registration should be skipped
+     */
+    Consumer<E> acquire() {
+        if (!active.get()) {
+            return null;
+        }
+        Consumer<E> current = listener();
+        if (null == current) {
+            cancel();
+            return null;
+        }
+        if (null != remaining) {
+            int n;
+            do {
+                n = remaining.get();
+                if (n <= 0) {
+                    return null;
+                }
+            } while (!remaining.compareAndSet(n, n - 1));
+            if (1 == n) {
+                cancel();
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public void cancel() {
+        if (active.compareAndSet(true, false)) {
+            manager.cancelled(this);
+        }
+    }
+
+    /**
+     * Marks the registration inactive after the manager has already dropped it.
+     */
+    void deactivate() {
+        active.set(false);
+    }
+
+    @Override
+    public boolean isActive() {
+        return active.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T, E> Registration<T, E>[] none() {
+        return (Registration<T, E>[]) NONE;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T, E> Registration<T, E>[] newArray(int length) {
+        return (Registration<T, E>[]) new Registration<?, ?>[length];
+    }
+}
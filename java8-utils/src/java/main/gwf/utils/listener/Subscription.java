@@ -0,0 +1,21 @@
+package gwf.utils.listener;
+
+/**
+ * A handle to a listener registered with a {@link ListenerManager}.
+ * <br>
+ */
+public interface Subscription {
+    /**
+     * Stops the listener from receiving further events. Takes constant time and may be
+     * called from any thread, including from within the listener; calling it again has no
+     * effect. A delivery already in progress on another thread may still invoke the
+     * listener once.
+     */
+    void cancel();
+
+    /**
+     * @return false once the subscription has been cancelled, removed, used up, or its
+     *         weakly held listener has been collected
+     */
+    boolean isActive();
+}
@@ -0,0 +1,92 @@
+package gwf.utils.listener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Description: A hierarchical topic pattern such as <code>save.*</code>. Topics and
+ * patterns are split into segments on <code>'.'</code>. In a pattern, <code>*</code>
+ * matches exactly one segment and <code>**</code> matches any number of segments,
+ * including none; every other segment must match exactly.<br>
+ * <br>
+ * An event's topic is its name if it is an enum, otherwise its <code>toString()</code>.
+ * When matching one event against many patterns, split the topic once with
+ * {@link #segmentsOf(Object)} and match the segments.
+ * <br>
+ */
+final class TopicPattern {
+    private static final String ONE = "*";
+    private static final String ANY = "**";
+
+    private final String pattern;
+    private final String[] segments;
+
+    TopicPattern(String pattern) {
+        this.pattern = Objects.requireNonNull(pattern);
+        this.segments = split(pattern);
+    }
+
+    boolean matches(Object event) {
+        return matches(segmentsOf(event));
+    }
+
+    /**
+     * @param topic the segments of an event's topic, from {@link #segmentsOf(Object)}
+     */
+    boolean matches(String[] topic) {
+        return matches(topic, 0, 0);
+    }
+
+    private boolean matches(String[] topic, int t, int p) {
+        while (p < segments.length) {
+            String segment = segments[p];
+            if (ANY.equals(segment)) {
+                for (int rest = t; rest <= topic.length; rest++) {
+                    if (matches(topic, rest, p + 1)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (t == topic.length || !(ONE.equals(segment) || segment.equals(topic[t]))) {
+                return false;
+            }
+            t++;
+            p++;
+        }
+        return t == topic.length;
+    }
+
+    static String[] segmentsOf(Object event) {
+        return split(topicOf(event));
+    }
+
+    /**
+     * Splits on every <code>'.'</code>, keeping empty segments.
+     */
+    private static String[] split(String topic) {
+        int dot = topic.indexOf('.');
+        if (dot < 0) {
+            return new String[] { topic };
+        }
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        while (dot >= 0) {
+            segments.add(topic.substring(start, dot));
+            start = dot + 1;
+            dot = topic.indexOf('.', start);
+        }
+        segments.add(topic.substring(start));
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    static String topicOf(Object event) {
+        return event instanceof Enum ? ((Enum<?>) event).name() : String.valueOf(event);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -19,11 +19,13 @@
  *          lm.notify("saveFailure");
  *      }
  *    }
- *    public addListener(String event, Consumer&lt;IData&gt; listener) {
- *        lm.addListener(event, listener);
+ *    public Subscription addListener(String event, Consumer&lt;IData&gt; listener) {
+ *        return lm.addWeak(event, listener);
  *    }
  * }
  * 
+ * // The handler's fields keep its listeners reachable; once the handler itself is
+ * // collected, its weakly held listeners are removed from the ListenerManager.
  * public class MyDataObjectHandler {
  *     private final Consumer&lt;IData&gt; beforeSaveListener = data -> {};
  *     private final Consumer&lt;IData&gt; saveSuccessListener = data -> {};
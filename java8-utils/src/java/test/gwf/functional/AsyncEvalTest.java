@@ -0,0 +1,79 @@
+package gwf.functional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+public class AsyncEvalTest {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Executor direct = Runnable::run;
+
+    private final Supplier<Integer> failing = () -> {
+        calls.incrementAndGet();
+        throw new IllegalStateException("unavailable");
+    };
+
+    @Test
+    public void callersShareOneFuture() {
+        AsyncEval<Integer> eval = AsyncEval.defer(calls::incrementAndGet, direct);
+        CompletableFuture<Integer> first = eval.get();
+        assertSame(first, eval.get());
+        assertEquals(1, (int) eval.join());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void prefetchStartsOnBuild() {
+        AsyncEval.builder(calls::incrementAndGet, direct).prefetch().build();
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void failureIsReturnedDuringBackoff() {
+        AsyncEval<Integer> eval = AsyncEval.builder(failing, direct)
+                .failureBackoff(1, TimeUnit.HOURS)
+                .build();
+        CompletableFuture<Integer> failed = eval.get();
+        assertTrue(failed.isCompletedExceptionally());
+        assertSame(failed, eval.get());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void failureIsRetriedAfterBackoff() throws InterruptedException {
+        AsyncEval<Integer> eval = AsyncEval.builder(failing, direct)
+                .failureBackoff(1, TimeUnit.MILLISECONDS)
+                .build();
+        CompletableFuture<Integer> failed = eval.get();
+        Thread.sleep(5);
+        assertNotSame(failed, eval.get());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void rejectedExecutionFailsTheAttempt() {
+        AsyncEval<Integer> eval = AsyncEval.defer(calls::incrementAndGet, task -> {
+            throw new RejectedExecutionException("shut down");
+        });
+        assertTrue(eval.get().isCompletedExceptionally());
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    public void invalidateStartsANewAttempt() {
+        AsyncEval<Integer> eval = AsyncEval.defer(calls::incrementAndGet, direct);
+        assertEquals(1, (int) eval.join());
+        eval.invalidate();
+        assertEquals(2, (int) eval.join());
+    }
+}
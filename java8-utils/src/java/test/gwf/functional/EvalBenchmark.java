@@ -0,0 +1,109 @@
+package gwf.functional;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Description: Compares {@link Eval} with the former implementation, which evaluated every
+ * Eval under the global <code>Eval.class</code> monitor. <code>firstGet</code> evaluates a
+ * new instance per call, so it measures how much unrelated first evaluations block each
+ * other; <code>steadyGet</code> reads an already evaluated instance. The nested classes rerun
+ * the same benchmarks with 8 and 64 contending threads.
+ * <br>
+ * Run with <code>mvn -P jmh test-compile exec:exec -Djmh.args=EvalBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class EvalBenchmark {
+    /**
+     * The cost of the supplier, in {@link Blackhole#consumeCPU(long)} tokens.
+     */
+    private static final long WORK = 100;
+
+    private static final Supplier<Integer> supplier = () -> {
+        Blackhole.consumeCPU(WORK);
+        return 42;
+    };
+
+    private Supplier<Integer> eval;
+    private Supplier<Integer> globalLockEval;
+
+    @Setup
+    public void setup() {
+        eval = Eval.defer(supplier);
+        eval.get();
+        globalLockEval = new GlobalLockEval<>(supplier);
+        globalLockEval.get();
+    }
+
+    @Benchmark
+    public Integer firstGet() {
+        return Eval.defer(supplier).get();
+    }
+
+    @Benchmark
+    public Integer firstGetGlobalLock() {
+        return new GlobalLockEval<>(supplier).get();
+    }
+
+    @Benchmark
+    public Integer steadyGet() {
+        return eval.get();
+    }
+
+    @Benchmark
+    public Integer steadyGetGlobalLock() {
+        return globalLockEval.get();
+    }
+
+    @Threads(8)
+    public static class Threads8 extends EvalBenchmark {
+    }
+
+    @Threads(64)
+    public static class Threads64 extends EvalBenchmark {
+    }
+
+    /**
+     * The former Eval, kept as the baseline.
+     */
+    private static class GlobalLockEval<T> implements Supplier<T> {
+        private final Supplier<T> delegate;
+        private Optional<T> deferred = null;
+
+        private GlobalLockEval(Supplier<T> supplier) {
+            this.delegate = supplier;
+        }
+
+        @Override
+        public T get() {
+            if (null == deferred) {
+                synchronized (GlobalLockEval.class) {
+                    if (null == deferred) {
+                        deferred = Optional.ofNullable(delegate.get());
+                    }
+                }
+            }
+            return deferred.orElse(null);
+        }
+    }
+}
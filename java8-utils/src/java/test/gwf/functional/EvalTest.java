@@ -0,0 +1,63 @@
+package gwf.functional;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+public class EvalTest {
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    public void valueIsEvaluatedOnce() {
+        Eval<Integer> eval = Eval.defer(calls::incrementAndGet);
+        assertEquals(0, calls.get());
+        assertEquals(1, (int) eval.get());
+        assertEquals(1, (int) eval.get());
+    }
+
+    @Test
+    public void mapIsInvalidatedWithItsSource() {
+        Eval<Integer> source = Eval.defer(calls::incrementAndGet);
+        Eval<Integer> doubled = source.map(v -> v * 2);
+        assertEquals(2, (int) doubled.get());
+        Eval.defer(source);
+        assertEquals(4, (int) doubled.get());
+    }
+
+    @Test
+    public void flatMapFollowsOnlyTheLatestInnerEval() {
+        Eval<Integer> odd = Eval.defer(() -> 100 + calls.get());
+        Eval<Integer> even = Eval.defer(() -> 200 + calls.get());
+        Eval<Integer> selector = Eval.defer(calls::incrementAndGet);
+        Eval<Integer> selected = selector.flatMap(v -> v % 2 == 0 ? even : odd);
+        assertEquals(101, (int) selected.get());
+
+        Eval.defer(selector);
+        assertEquals(202, (int) selected.get());
+
+        // the previous inner Eval no longer invalidates the result
+        Eval.defer(odd);
+        assertEquals(202, (int) selected.get());
+        Eval.defer(even);
+        calls.incrementAndGet();
+        assertEquals(203, (int) selected.get());
+    }
+
+    @Test
+    public void zipAndCombineAreInvalidatedWithAnySource() {
+        Eval<Integer> a = Eval.defer(calls::incrementAndGet);
+        Eval<Integer> b = Eval.defer(() -> 10);
+        Eval<Integer> sum = a.zip(b, Integer::sum);
+        Supplier<Integer> plain = () -> 100;
+        Eval<Integer> total = Eval.combine(Arrays.asList(a, b, plain), values -> values.stream().mapToInt(Integer::intValue).sum());
+        assertEquals(11, (int) sum.get());
+        assertEquals(111, (int) total.get());
+        Eval.defer(a);
+        assertEquals(12, (int) sum.get());
+        assertEquals(112, (int) total.get());
+    }
+}
@@ -0,0 +1,99 @@
+package gwf.functional;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+public class ExpiringEvalTest {
+    private final AtomicInteger loads = new AtomicInteger();
+    private final Supplier<Integer> counter = loads::incrementAndGet;
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor queue = tasks::add;
+
+    private void runTasks() {
+        List<Runnable> pending = new ArrayList<>(tasks);
+        tasks.clear();
+        pending.forEach(Runnable::run);
+    }
+
+    private static void expire() throws InterruptedException {
+        Thread.sleep(5);
+    }
+
+    @Test
+    public void valueIsCachedUntilItExpires() throws InterruptedException {
+        ExpiringEval<Integer> eval = ExpiringEval.defer(counter, 1, TimeUnit.HOURS);
+        assertEquals(1, (int) eval.get());
+        assertEquals(1, (int) eval.get());
+        ExpiringEval<Integer> shortLived = ExpiringEval.defer(counter, 1, TimeUnit.MILLISECONDS);
+        assertEquals(2, (int) shortLived.get());
+        expire();
+        assertEquals(3, (int) shortLived.get());
+    }
+
+    @Test
+    public void staleValueIsServedWhileOneRefreshRuns() throws InterruptedException {
+        ExpiringEval<Integer> eval = ExpiringEval.builder(counter)
+                .expireAfter(1, TimeUnit.MILLISECONDS)
+                .refreshOn(queue)
+                .staleWhileRevalidate()
+                .build();
+        assertEquals(1, (int) eval.get());
+        expire();
+        assertEquals(1, (int) eval.get());
+        assertEquals(1, (int) eval.get());
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(2, (int) eval.get());
+    }
+
+    @Test
+    public void refreshCompletingAfterInvalidateIsDiscarded() throws InterruptedException {
+        AtomicReference<ExpiringEval<Integer>> self = new AtomicReference<>();
+        Supplier<Integer> invalidating = () -> {
+            int n = loads.incrementAndGet();
+            if (2 == n) {
+                self.get().invalidate();
+            }
+            return n;
+        };
+        ExpiringEval<Integer> eval = ExpiringEval.builder(invalidating)
+                .expireAfter(1, TimeUnit.HOURS)
+                .refreshAfter(1, TimeUnit.MILLISECONDS)
+                .refreshOn(queue)
+                .build();
+        self.set(eval);
+        assertEquals(1, (int) eval.get());
+        expire();
+        assertEquals(1, (int) eval.get());
+        runTasks();
+        assertEquals(2, loads.get());
+        assertEquals(3, (int) eval.get());
+    }
+
+    @Test
+    public void failedRefreshKeepsThePreviousValue() throws InterruptedException {
+        Supplier<Integer> failing = () -> {
+            if (loads.incrementAndGet() > 1) {
+                throw new IllegalStateException("refresh failed");
+            }
+            return 1;
+        };
+        ExpiringEval<Integer> eval = ExpiringEval.builder(failing)
+                .expireAfter(1, TimeUnit.HOURS)
+                .refreshAfter(1, TimeUnit.MILLISECONDS)
+                .build();
+        assertEquals(1, (int) eval.get());
+        expire();
+        assertEquals(1, (int) eval.get());
+        assertEquals(2, loads.get());
+    }
+}
@@ -0,0 +1,87 @@
+package gwf.functional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class MemoTest {
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private String describe(Integer key) {
+        calls.incrementAndGet();
+        return "value" + key;
+    }
+
+    @Test
+    public void valuesAreComputedOncePerKey() {
+        Memo<Integer, String> memo = Memo.<Integer, String>builder(this::describe).build();
+        assertEquals("value1", memo.apply(1));
+        assertEquals("value1", memo.apply(1));
+        assertEquals("value2", memo.apply(2));
+        assertEquals(2, calls.get());
+        Memo.Stats stats = memo.stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(2, stats.missCount());
+        assertEquals(0, stats.evictionCount());
+    }
+
+    @Test
+    public void sizeIsBoundedByEviction() {
+        Memo<Integer, String> memo = Memo.<Integer, String>builder(this::describe)
+                .maximumSize(2)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            memo.apply(i);
+        }
+        assertEquals(2, memo.size());
+        assertEquals(2, memo.weight());
+        assertEquals(8, memo.stats().evictionCount());
+    }
+
+    @Test
+    public void weightIsBoundedByEviction() {
+        Memo<Integer, String> memo = Memo.<Integer, String>builder(this::describe)
+                .maximumWeight(10, (key, value) -> key)
+                .build();
+        memo.apply(4);
+        memo.apply(5);
+        assertEquals(9, memo.weight());
+        memo.apply(6);
+        assertTrue(memo.weight() <= 10);
+        assertTrue(memo.stats().evictionCount() >= 1);
+    }
+
+    @Test
+    public void invalidatedKeysAreRecomputed() {
+        Memo<Integer, String> memo = Memo.<Integer, String>builder(this::describe).build();
+        memo.apply(1);
+        memo.invalidate(1);
+        assertEquals(0, memo.weight());
+        memo.apply(1);
+        assertEquals(2, calls.get());
+        memo.invalidateAll();
+        assertEquals(0, memo.size());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        Memo<Integer, String> memo = Memo.<Integer, String>builder(key -> {
+            if (1 == calls.incrementAndGet()) {
+                throw new IllegalStateException("first call fails");
+            }
+            return "value" + key;
+        }).build();
+        try {
+            memo.apply(1);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, memo.size());
+        assertEquals("value1", memo.apply(1));
+    }
+}
@@ -0,0 +1,43 @@
+package gwf.functional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import org.junit.Test;
+
+public class PrimitiveEvalTest {
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    public void intEvalEvaluatesOnceUntilDeferredAgain() {
+        IntSupplier eval = IntEval.defer(calls::incrementAndGet);
+        assertEquals(0, calls.get());
+        assertEquals(1, eval.getAsInt());
+        assertEquals(1, eval.getAsInt());
+        assertSame(eval, IntEval.defer(eval));
+        assertEquals(2, eval.getAsInt());
+    }
+
+    @Test
+    public void longEvalEvaluatesOnceUntilDeferredAgain() {
+        LongSupplier eval = LongEval.defer(() -> calls.incrementAndGet() + (long) Integer.MAX_VALUE);
+        assertEquals(1L + Integer.MAX_VALUE, eval.getAsLong());
+        assertEquals(1L + Integer.MAX_VALUE, eval.getAsLong());
+        assertSame(eval, LongEval.defer(eval));
+        assertEquals(2L + Integer.MAX_VALUE, eval.getAsLong());
+    }
+
+    @Test
+    public void doubleEvalEvaluatesOnceUntilDeferredAgain() {
+        DoubleSupplier eval = DoubleEval.defer(() -> calls.incrementAndGet() / 2.0);
+        assertEquals(0.5, eval.getAsDouble(), 0);
+        assertEquals(0.5, eval.getAsDouble(), 0);
+        assertSame(eval, DoubleEval.defer(eval));
+        assertEquals(1.0, eval.getAsDouble(), 0);
+    }
+}
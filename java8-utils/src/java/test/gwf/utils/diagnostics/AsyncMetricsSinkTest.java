@@ -0,0 +1,100 @@
+package gwf.utils.diagnostics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AsyncMetricsSinkTest {
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private final MetricsSink recording = (group, name, kind, value) -> received.add(group + "." + name + " " + kind + " " + value);
+
+    @Test
+    public void measurementsAreDeliveredInOrder() {
+        AsyncMetricsSink sink = AsyncMetricsSink.builder().to(recording).idleWait(1, TimeUnit.MILLISECONDS).build();
+        for (int i = 0; i < 100; i++) {
+            sink.record("group", "name", MetricsSink.Kind.TIMER, i);
+        }
+        sink.close();
+        assertEquals(100, sink.getDelivered());
+        assertEquals(0, sink.getDropped());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("group.name TIMER " + i, received.get(i));
+        }
+    }
+
+    @Test
+    public void fullRingDropsAndCountsMeasurements() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MetricsSink slow = (group, name, kind, value) -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        AsyncMetricsSink sink = AsyncMetricsSink.builder().to(slow).capacity(4).idleWait(1, TimeUnit.MILLISECONDS).build();
+        sink.record("group", "first", MetricsSink.Kind.COUNTER, 1);
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 99; i++) {
+            sink.record("group", "name", MetricsSink.Kind.COUNTER, 1);
+        }
+        assertEquals(95, sink.getDropped());
+        release.countDown();
+        sink.close();
+        assertEquals(5, sink.getDelivered());
+        assertEquals(100, sink.getDelivered() + sink.getDropped());
+    }
+
+    @Test
+    public void concurrentWritersAreAllAccountedFor() throws InterruptedException {
+        AsyncMetricsSink sink = AsyncMetricsSink.builder().to(recording).capacity(64).idleWait(1, TimeUnit.MILLISECONDS).build();
+        int threads = 4;
+        int records = 10_000;
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < records; i++) {
+                    sink.record("group", "name", MetricsSink.Kind.COUNTER, 1);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        sink.close();
+        assertEquals(threads * records, sink.getDelivered() + sink.getDropped());
+        assertEquals(sink.getDelivered(), received.size());
+    }
+
+    @Test
+    public void measurementsAfterCloseAreDropped() {
+        AsyncMetricsSink sink = AsyncMetricsSink.builder().to(recording).build();
+        sink.close();
+        sink.record("group", "name", MetricsSink.Kind.COUNTER, 1);
+        assertEquals(1, sink.getDropped());
+        assertEquals(0, sink.getDelivered());
+    }
+
+    @Test
+    public void failingSinkDoesNotStopDelivery() {
+        MetricsSink failing = (group, name, kind, value) -> {
+            throw new IllegalStateException("sink failed");
+        };
+        AsyncMetricsSink sink = AsyncMetricsSink.builder().to(failing).to(recording).idleWait(1, TimeUnit.MILLISECONDS).build();
+        sink.record("group", "a", MetricsSink.Kind.COUNTER, 1);
+        sink.record("group", "b", MetricsSink.Kind.COUNTER, 1);
+        sink.close();
+        assertEquals(2, received.size());
+    }
+}
@@ -0,0 +1,113 @@
+package gwf.utils.diagnostics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Description: Compares {@link CallStackAnalyzer} with the former implementation, which
+ * captured and formatted the whole stack through a Stream on every call. Each call is made
+ * <code>depth</code> frames below the benchmark method and keeps the first 5 frames of this
+ * package. Add <code>-prof gc</code> to the arguments to compare allocation as well.
+ * <br>
+ * Run with <code>mvn -P jmh test-compile exec:exec -Djmh.args=CallStackAnalyzerBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallStackAnalyzerBenchmark {
+    private static final int LIMIT = 5;
+    private static final Predicate<String> inPackage = className -> className.startsWith("gwf.utils.diagnostics.");
+
+    @Param({"10", "50"})
+    private int depth;
+
+    private CallStackAnalyzer analyzer;
+    private StreamCallStackAnalyzer streamAnalyzer;
+    private final StringBuilder sb = new StringBuilder();
+    private String result;
+    private final Consumer<String> keep = s -> result = s;
+
+    @Setup
+    public void setup() {
+        analyzer = CallStackAnalyzer.builder().filter(inPackage).limit(LIMIT).build();
+        streamAnalyzer = new StreamCallStackAnalyzer(inPackage, LIMIT, "\n  ",
+                e -> e.getClassName() + "." + e.getMethodName() + "(...)[" + e.getLineNumber() + "]");
+    }
+
+    @Benchmark
+    public String sendTo() {
+        return atDepth(depth, () -> {
+            analyzer.sendTo(keep);
+            return result;
+        });
+    }
+
+    @Benchmark
+    public StringBuilder appendTo() {
+        return atDepth(depth, () -> {
+            sb.setLength(0);
+            return analyzer.appendTo(sb);
+        });
+    }
+
+    @Benchmark
+    public String sendToStream() {
+        return atDepth(depth, () -> {
+            streamAnalyzer.sendTo(keep);
+            return result;
+        });
+    }
+
+    private static <R> R atDepth(int depth, Supplier<R> fn) {
+        return 0 == depth ? fn.get() : atDepth(depth - 1, fn);
+    }
+
+    /**
+     * The former CallStackAnalyzer, kept as the baseline.
+     */
+    private static class StreamCallStackAnalyzer {
+        private static final Predicate<StackTraceElement> isNotAnonymous = e -> e.getClassName().indexOf('$') == -1 && e.getMethodName().indexOf('$') == -1;
+        private final Predicate<StackTraceElement> fnMatchClass;
+        private final int limit;
+        private final Function<StackTraceElement, String> fnFormat;
+        private final String join;
+
+        private StreamCallStackAnalyzer(Predicate<String> matchClass, int limit, String join, Function<StackTraceElement, String> fnFormat) {
+            Predicate<StackTraceElement> fnMatch = ste -> matchClass.test(ste.getClassName());
+            fnMatchClass = fnMatch.and(e -> !e.getClassName().equals(this.getClass().getCanonicalName()));
+            this.limit = limit;
+            this.join = join;
+            this.fnFormat = fnFormat;
+        }
+
+        private void sendTo(Consumer<String> fnProcess) {
+            StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+            String callStack = Arrays.stream(stack)
+                    .filter(isNotAnonymous.and(fnMatchClass))
+                    .limit(limit)
+                    .map(fnFormat)
+                    .collect(Collectors.joining(join));
+            fnProcess.accept(callStack);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package gwf.utils.diagnostics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverTheirValues() {
+        long[] values = {0, 1, 15, 16, 17, 100, 1_000, 123_456_789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+            assertTrue(0 == bucket || value > LatencyHistogram.upperBoundOf(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1_000_000, snapshot.getMax());
+        assertEquals(500_500, snapshot.getMean(), 0.001);
+        assertWithin(500_000, snapshot.getP50());
+        assertWithin(990_000, snapshot.getP99());
+        assertEquals(1_000_000, snapshot.getValueAtQuantile(1));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not within 12.5% of " + expected, actual >= expected && actual <= expected * 1.125);
+    }
+
+    @Test
+    public void negativeDurationsAreRecordedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.snapshot().getMax());
+        assertEquals(1, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void snapshotAndResetStartsOver() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        assertEquals(1, histogram.snapshotAndReset().getCount());
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getMax());
+    }
+
+    @Test
+    public void minusAndMergeCombineSnapshots() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        LatencyHistogram.Snapshot earlier = histogram.snapshot();
+        histogram.record(50);
+        histogram.record(60);
+        LatencyHistogram.Snapshot delta = histogram.snapshot().minus(earlier);
+        assertEquals(2, delta.getCount());
+        assertEquals(110, delta.getSum());
+        assertTrue(delta.getMax() < 100);
+        LatencyHistogram.Snapshot merged = delta.merge(earlier);
+        assertEquals(3, merged.getCount());
+        assertEquals(100, merged.getMax());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quantileMustBeBetweenZeroAndOne() {
+        LatencyHistogram.Snapshot.empty().getValueAtQuantile(1.5);
+    }
+}
@@ -0,0 +1,65 @@
+package gwf.utils.diagnostics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Description: Measures the overhead of timing an empty block with each form of
+ * {@link Perf}, and of the stack lookups the former no-argument forms made to find their
+ * caller: one full stack trace each for start and stop.
+ * <br>
+ * Run with <code>mvn -P jmh test-compile exec:exec -Djmh.args=PerfBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PerfBenchmark {
+    private static final PerfKey KEY = PerfKey.of("PerfBenchmark.key");
+
+    @Benchmark
+    public void key() {
+        Perf.start(KEY).close();
+    }
+
+    @Benchmark
+    public void id() {
+        Perf.start("PerfBenchmark.id").close();
+    }
+
+    @Benchmark
+    public void idStartStop() {
+        Perf.start("PerfBenchmark.idStartStop");
+        Perf.stop("PerfBenchmark.idStartStop");
+    }
+
+    @Benchmark
+    public void caller() {
+        Perf.start();
+        Perf.stop();
+    }
+
+    @Benchmark
+    public String stackTraceCallerIds() {
+        return stackTraceCallerId() + stackTraceCallerId();
+    }
+
+    /**
+     * How the former <code>Perf.start()</code> and <code>Perf.stop()</code> found their id.
+     */
+    private static String stackTraceCallerId() {
+        StackTraceElement e = Thread.currentThread().getStackTrace()[2];
+        return e.getClassName() + "->" + e.getMethodName();
+    }
+}
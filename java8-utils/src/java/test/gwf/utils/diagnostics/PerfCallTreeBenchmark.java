@@ -0,0 +1,62 @@
+package gwf.utils.diagnostics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Description: Measures the cost of {@link Perf} call trees: a timer with two nested
+ * timers, with call trees disabled and enabled. The nested class reruns it with 8 threads,
+ * which only contend if recording into the per-thread trees does.
+ * <br>
+ * Run with <code>mvn -P jmh test-compile exec:exec -Djmh.args=PerfCallTreeBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class PerfCallTreeBenchmark {
+    private static final PerfKey SAVE = PerfKey.of("PerfCallTreeBenchmark.save");
+    private static final PerfKey VALIDATE = PerfKey.of("PerfCallTreeBenchmark.validate");
+    private static final PerfKey PERSIST = PerfKey.of("PerfCallTreeBenchmark.persist");
+
+    @Param({"false", "true"})
+    private boolean callTrees;
+
+    @Setup
+    public void setup() {
+        Perf.setCallTrees(callTrees);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Perf.setCallTrees(false);
+    }
+
+    @Benchmark
+    public void nested() {
+        Perf.Timer save = Perf.start(SAVE);
+        Perf.start(VALIDATE).close();
+        Perf.start(PERSIST).close();
+        save.close();
+    }
+
+    @Threads(8)
+    public static class Threads8 extends PerfCallTreeBenchmark {
+    }
+}
@@ -0,0 +1,78 @@
+package gwf.utils.diagnostics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PerfTest {
+    @Test
+    public void closingATimerRecordsOneRun() throws InterruptedException {
+        try (Perf.Timer timer = Perf.start("PerfTest.scoped")) {
+            Thread.sleep(2);
+            assertTrue(timer.elapsed() >= TimeUnit.MILLISECONDS.toNanos(2));
+        }
+        LatencyHistogram.Snapshot stats = Perf.getStats("PerfTest.scoped");
+        assertEquals(1, stats.getCount());
+        assertTrue(stats.getMax() >= TimeUnit.MILLISECONDS.toNanos(2));
+    }
+
+    @Test
+    public void closingATimerTwiceRecordsItOnce() {
+        Perf.Timer timer = Perf.start("PerfTest.twice");
+        timer.close();
+        timer.close();
+        Perf.stop("PerfTest.twice");
+        assertEquals(1, Perf.getStats("PerfTest.twice").getCount());
+    }
+
+    @Test
+    public void startAndStopPairPerThread() {
+        Perf.start("PerfTest.paired");
+        Perf.stop("PerfTest.paired");
+        Perf.stop("PerfTest.unstarted");
+        assertEquals(1, Perf.getStats("PerfTest.paired").getCount());
+        assertNull(Perf.getStats("PerfTest.unstarted"));
+    }
+
+    @Test
+    public void concurrentRunsOfOneIdAreAllCounted() throws InterruptedException {
+        PerfKey key = PerfKey.of("PerfTest.concurrent");
+        int threads = 8;
+        int runs = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < runs; i++) {
+                    Perf.start(key).close();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads * runs, Perf.getStats("PerfTest.concurrent").getCount());
+    }
+
+    @Test
+    public void callerFormsUseTheCallingMethod() {
+        Perf.start();
+        Perf.stop();
+        assertEquals(1, Perf.getStats(PerfTest.class.getName() + "->callerFormsUseTheCallingMethod").getCount());
+    }
+}
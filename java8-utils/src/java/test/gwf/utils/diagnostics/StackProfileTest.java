@@ -0,0 +1,72 @@
+package gwf.utils.diagnostics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class StackProfileTest {
+    private static void record(StackProfile profile, String... frames) {
+        profile.record(frames, frames.length);
+    }
+
+    private static Set<String> lines(StackProfile profile) {
+        return new HashSet<>(Arrays.asList(profile.toCollapsed().split("\n")));
+    }
+
+    @Test
+    public void stacksAreCollapsedOutermostFirst() {
+        StackProfile profile = StackProfile.builder().build();
+        record(profile, "inner", "middle", "main");
+        record(profile, "inner", "middle", "main");
+        record(profile, "other", "main");
+        record(profile, "middle", "main");
+        assertEquals(new HashSet<>(Arrays.asList("main;middle;inner 2", "main;other 1", "main;middle 1")), lines(profile));
+        assertEquals(4, profile.getTotal());
+        assertEquals(4, profile.size());
+    }
+
+    @Test
+    public void deepStacksKeepTheirInnermostFrames() {
+        StackProfile profile = StackProfile.builder().maxDepth(2).build();
+        record(profile, "c", "b", "a");
+        assertEquals("b;c 1\n", profile.toCollapsed());
+    }
+
+    @Test
+    public void semicolonsInFramesAreReplaced() {
+        StackProfile profile = StackProfile.builder().build();
+        record(profile, "f(a;b)");
+        assertEquals("f(a,b) 1\n", profile.toCollapsed());
+    }
+
+    @Test
+    public void pruningKeepsTheMostFrequentStacksAndTheTotal() {
+        StackProfile profile = StackProfile.builder().build();
+        for (int i = 0; i < 5; i++) {
+            record(profile, "hot", "main");
+        }
+        record(profile, "cold", "main");
+        record(profile, "colder", "main");
+        profile.prune(1);
+        assertEquals(new HashSet<>(Arrays.asList("main;hot 5", "[other] 2")), lines(profile));
+        assertEquals(7, profile.getTotal());
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        StackProfile profile = StackProfile.builder().maxNodes(20).keepTop(4).build();
+        for (int i = 0; i < 100; i++) {
+            record(profile, "leaf" + i, "main");
+        }
+        assertTrue(profile.size() <= 20);
+        assertEquals(100, profile.getTotal());
+        profile.reset();
+        assertEquals(0, profile.getTotal());
+        assertEquals(0, profile.size());
+    }
+}
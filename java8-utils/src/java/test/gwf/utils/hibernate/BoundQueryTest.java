@@ -0,0 +1,88 @@
+package gwf.utils.hibernate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.type.StandardBasicTypes;
+import org.junit.Test;
+
+public class BoundQueryTest {
+    private final Dialect h2 = new H2Dialect();
+
+    @Test
+    public void placeholdersInLiteralsAndCommentsAreKept() {
+        String sql = "select '?', \"a?\", `b?` from t -- where ?\nwhere x = ? /* ? */ and y = ?";
+        assertEquals("select '?', \"a?\", `b?` from t -- where ?\nwhere x = 0 /* ? */ and y = 1",
+                BoundQuery.replacePlaceholders(sql, String::valueOf));
+        assertEquals(2, BoundQuery.countPlaceholders(sql));
+    }
+
+    @Test
+    public void doubledQuotesStayWithinTheLiteral() {
+        assertEquals("where a = 'it''s?' and b = 0", BoundQuery.replacePlaceholders("where a = 'it''s?' and b = ?", String::valueOf));
+    }
+
+    @Test
+    public void unterminatedLiteralsAndCommentsRunToTheEnd() {
+        assertEquals("where a = 0 and b = '?", BoundQuery.replacePlaceholders("where a = ? and b = '?", String::valueOf));
+        assertEquals("where a = 0 /* ?", BoundQuery.replacePlaceholders("where a = ? /* ?", String::valueOf));
+    }
+
+    @Test
+    public void numbersAndNullAreRenderedAsIs() {
+        assertEquals("NULL", BoundQuery.toLiteral(null, null, h2));
+        assertEquals("42", BoundQuery.toLiteral(42L, StandardBasicTypes.LONG, h2));
+        assertEquals("0.00000001", BoundQuery.toLiteral(new BigDecimal("1E-8"), StandardBasicTypes.BIG_DECIMAL, h2));
+        assertEquals("2.5", BoundQuery.toLiteral(2.5d, StandardBasicTypes.DOUBLE, h2));
+        assertEquals("'NaN'", BoundQuery.toLiteral(Double.NaN, StandardBasicTypes.DOUBLE, h2));
+    }
+
+    @Test
+    public void stringsAreQuotedForTheDialect() {
+        assertEquals("'O''Brien'", BoundQuery.toLiteral("O'Brien", StandardBasicTypes.STRING, h2));
+        assertEquals("'a\\b'", BoundQuery.toLiteral("a\\b", StandardBasicTypes.STRING, h2));
+        assertEquals("'a\\\\b'", BoundQuery.toLiteral("a\\b", StandardBasicTypes.STRING, new MySQLDialect()));
+    }
+
+    @Test
+    public void booleansFollowTheirMapping() {
+        assertEquals("'Y'", BoundQuery.toLiteral(true, StandardBasicTypes.YES_NO, h2));
+        assertEquals("1", BoundQuery.toLiteral(true, StandardBasicTypes.NUMERIC_BOOLEAN, h2));
+        assertEquals(h2.toBooleanValueString(false), BoundQuery.toLiteral(false, null, h2));
+    }
+
+    @Test
+    public void dateTimesAreRenderedAsBound() {
+        assertEquals("'2020-01-02'", BoundQuery.toLiteral(LocalDate.of(2020, 1, 2), null, h2));
+        assertEquals("'2020-01-02 03:04:05.0'", BoundQuery.toLiteral(LocalDateTime.of(2020, 1, 2, 3, 4, 5), null, h2));
+        assertEquals("'2020-01-02'", BoundQuery.toLiteral(java.sql.Date.valueOf("2020-01-02"), null, h2));
+    }
+
+    @Test
+    public void otherValuesAreQuoted() {
+        UUID id = UUID.randomUUID();
+        assertEquals("'" + id + "'", BoundQuery.toLiteral(id, null, h2));
+        assertEquals("X'00ff'", BoundQuery.toLiteral(new byte[] {0, (byte) 0xff}, null, h2));
+    }
+
+    @Test
+    public void inlinedSqlReplacesBoundParametersOnly() {
+        BoundQuery query = new BoundQuery("select * from t where a = ? and b = ?", Arrays.asList(
+                new BoundQuery.Parameter(":a", StandardBasicTypes.STRING, "x", true),
+                new BoundQuery.Parameter(":b", StandardBasicTypes.STRING, null, false)), true, h2);
+        assertEquals("select * from t where a = 'x' and b = ?", query.getInlinedSql());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void inlinedSqlRequiresAlignedParameters() {
+        new BoundQuery("select * from t where a = ?", Arrays.asList(), false, h2).getInlinedSql();
+    }
+}
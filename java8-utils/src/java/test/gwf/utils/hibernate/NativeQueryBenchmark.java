@@ -0,0 +1,98 @@
+package gwf.utils.hibernate;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.annotations.Filter;
+import org.hibernate.annotations.FilterDef;
+import org.hibernate.annotations.ParamDef;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.query.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Description: Compares {@link HibernateUtils#getNativeQuery(javax.persistence.Query, Session)}
+ * translating a query from scratch with answering it from the translation cache, against
+ * an in-memory H2 database. <code>cachedFilterChanged</code> changes the value of an
+ * enabled filter before each call, which must still be answered from the cache.
+ * <br>
+ * Run with <code>mvn -P jmh test-compile exec:exec -Djmh.args=NativeQueryBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NativeQueryBenchmark {
+    @Entity(name = "Purchase")
+    @FilterDef(name = "minTotal", parameters = @ParamDef(name = "total", type = "long"))
+    @Filter(name = "minTotal", condition = "total >= :total")
+    public static class Purchase {
+        @Id
+        private Long id;
+        private String customer;
+        private long total;
+    }
+
+    private SessionFactory sessionFactory;
+    private Session session;
+    private Query<?> query;
+    private long total = 0;
+
+    @Setup
+    public void setup() {
+        sessionFactory = new Configuration().addAnnotatedClass(Purchase.class)
+                .setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect")
+                .setProperty("hibernate.connection.driver_class", "org.h2.Driver")
+                .setProperty("hibernate.connection.url", "jdbc:h2:mem:nativequerybenchmark;DB_CLOSE_DELAY=-1")
+                .setProperty("hibernate.hbm2ddl.auto", "create-drop")
+                .buildSessionFactory();
+        session = sessionFactory.openSession();
+        session.enableFilter("minTotal").setParameter("total", total);
+        query = session.createQuery("select p.customer, sum(p.total) from Purchase p"
+                + " where p.customer like :customer and p.id in (:ids)"
+                + " group by p.customer having count(p) > 1 order by p.customer")
+                .setParameter("customer", "A%")
+                .setParameterList("ids", Arrays.asList(1L, 2L, 3L));
+        HibernateUtils.clearNativeQueryCache();
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public String cold() {
+        HibernateUtils.clearNativeQueryCache();
+        return HibernateUtils.getNativeQuery(query, session);
+    }
+
+    @Benchmark
+    public String cached() {
+        return HibernateUtils.getNativeQuery(query, session);
+    }
+
+    @Benchmark
+    public String cachedFilterChanged() {
+        session.enableFilter("minTotal").setParameter("total", ++total);
+        return HibernateUtils.getNativeQuery(query, session);
+    }
+}
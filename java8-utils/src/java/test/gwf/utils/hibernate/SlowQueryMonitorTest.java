@@ -0,0 +1,117 @@
+package gwf.utils.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import gwf.utils.diagnostics.LatencyHistogram;
+
+public class SlowQueryMonitorTest {
+    private static SessionFactory sessionFactory;
+
+    @Entity(name = "Item")
+    public static class Item {
+        @Id
+        private Long id;
+        private String name;
+
+        public Item() {
+        }
+
+        private Item(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    @BeforeClass
+    public static void openDatabase() {
+        sessionFactory = new Configuration().addAnnotatedClass(Item.class)
+                .setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect")
+                .setProperty("hibernate.connection.driver_class", "org.h2.Driver")
+                .setProperty("hibernate.connection.url", "jdbc:h2:mem:slowquerymonitor;DB_CLOSE_DELAY=-1")
+                .setProperty("hibernate.hbm2ddl.auto", "create-drop")
+                .buildSessionFactory();
+        try (Session session = sessionFactory.openSession()) {
+            session.beginTransaction();
+            for (long id = 1; id <= 5; id++) {
+                session.persist(new Item(id, "item " + id));
+            }
+            session.getTransaction().commit();
+        }
+    }
+
+    @AfterClass
+    public static void closeDatabase() {
+        sessionFactory.close();
+    }
+
+    @Test
+    public void literalsAndListsAreNormalized() {
+        assertEquals("select * from t where a = ? and b in (?) and c = ?",
+                SlowQueryMonitor.normalize("select *  from t\n where a = 'it''s' and b in (1, 2.5, -3) and c = ?"));
+        assertEquals("where a = ? and b = ?", SlowQueryMonitor.normalize("where a = 1.5e-3 and b = +7"));
+    }
+
+    @Test
+    public void operatorsIdentifiersAndQuotedNamesAreKept() {
+        assertEquals("select a-? from t1 where col2 = ?", SlowQueryMonitor.normalize("select a-1 from t1 where col2 = 2"));
+        assertEquals("select \"col 1\", `x2` from t", SlowQueryMonitor.normalize("select \"col 1\", `x2` from t"));
+    }
+
+    @Test
+    public void executionsAreTimedPerNormalizedStatement() {
+        SlowQueryMonitor monitor = SlowQueryMonitor.builder().build();
+        try (Session session = monitor.openSession(sessionFactory)) {
+            session.createQuery("from Item where id in (:ids)").setParameterList("ids", Arrays.asList(1L, 2L)).list();
+            session.createQuery("from Item where id in (:ids)").setParameterList("ids", Arrays.asList(1L, 2L, 3L)).list();
+        }
+        Map<String, LatencyHistogram.Snapshot> stats = monitor.getStats();
+        assertEquals(1, stats.size());
+        assertEquals(2, stats.values().iterator().next().getCount());
+        assertTrue(stats.keySet().iterator().next().contains("in (?)"));
+    }
+
+    @Test
+    public void repeatedStatementsAreReportedOncePerSession() {
+        SlowQueryMonitor monitor = SlowQueryMonitor.builder().repetitionThreshold(3).build();
+        try (Session session = monitor.openSession(sessionFactory)) {
+            for (long id = 1; id <= 5; id++) {
+                session.createQuery("from Item where id = :id").setParameter("id", id).list();
+            }
+        }
+        assertEquals(1, monitor.getRepeatedQueries());
+    }
+
+    @Test
+    public void slowExecutionsAreHandedToTheHandler() {
+        List<SlowQueryMonitor.SlowQuery> slow = new ArrayList<>();
+        SlowQueryMonitor monitor = SlowQueryMonitor.builder()
+                .slowThreshold(1, TimeUnit.NANOSECONDS)
+                .onSlowQuery(slow::add)
+                .build();
+        try (Session session = monitor.openSession(sessionFactory)) {
+            session.createQuery("from Item where name = 'item 1'").list();
+        }
+        assertEquals(1, monitor.getSlowQueries());
+        assertEquals(1, slow.size());
+        assertTrue(slow.get(0).getSql().contains("'item 1'"));
+        assertFalse(slow.get(0).getNormalizedSql().contains("item 1"));
+    }
+}
@@ -0,0 +1,89 @@
+package gwf.utils.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CoalescingTest {
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+
+    private ListenerManager<String, Object> coalescing() {
+        ListenerManager<String, Object> manager = ListenerManager.<String, Object>builder(new Object()).coalesce().build();
+        manager.add("a", controller -> calls.add("a"));
+        manager.add("b", controller -> calls.add("b"));
+        manager.addBatch(batches::add);
+        return manager;
+    }
+
+    @Test
+    public void eventsAreQueuedUntilFlush() {
+        ListenerManager<String, Object> manager = coalescing();
+        manager.notify("a");
+        assertTrue(calls.isEmpty());
+        manager.flush();
+        assertEquals(Collections.singletonList("a"), calls);
+        manager.flush();
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void eachEventIsDeliveredOncePerFlushInFirstNotifiedOrder() {
+        ListenerManager<String, Object> manager = coalescing();
+        manager.notify("b");
+        manager.notify("a");
+        manager.notify("b");
+        manager.flush();
+        assertEquals(Arrays.asList("b", "a"), calls);
+        assertEquals(Collections.singletonList(Arrays.asList("b", "a")), batches);
+    }
+
+    @Test
+    public void notifyAsyncCompletesWithTheFlush() {
+        ListenerManager<String, Object> manager = coalescing();
+        CompletableFuture<Void> first = manager.notifyAsync("a");
+        CompletableFuture<Void> second = manager.notifyAsync("a");
+        assertFalse(first.isDone());
+        manager.flush();
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertEquals(Collections.singletonList("a"), calls);
+    }
+
+    @Test
+    public void batchListenersReceiveEachNotificationWhenNotCoalescing() {
+        ListenerManager<String, Object> manager = new ListenerManager<>(new Object());
+        manager.addBatch(batches::add);
+        manager.notify("a");
+        manager.notify("a");
+        assertEquals(Arrays.asList(Collections.singletonList("a"), Collections.singletonList("a")), batches);
+    }
+
+    @Test
+    public void windowFlushesAutomatically() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ListenerManager<String, Object> manager = ListenerManager.<String, Object>builder(new Object())
+                    .coalesce(10, TimeUnit.MILLISECONDS, scheduler)
+                    .build();
+            manager.add("a", controller -> calls.add("a"));
+            CompletableFuture<Void> done = manager.notifyAsync("a");
+            manager.notify("a");
+            done.join();
+            assertEquals(Collections.singletonList("a"), calls);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package gwf.utils.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+public class DispatchMetricsTest {
+    private static final class Quick implements Consumer<Object> {
+        @Override
+        public void accept(Object controller) {
+        }
+    }
+
+    private static final class Slow implements Consumer<Object> {
+        @Override
+        public void accept(Object controller) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Failing implements Consumer<Object> {
+        @Override
+        public void accept(Object controller) {
+            throw new IllegalStateException("listener failed");
+        }
+    }
+
+    @Test
+    public void countsNotificationsAndInvocationsPerEventAndListenerClass() {
+        ListenerManager<String, Object> manager = ListenerManager.<String, Object>builder(new Object()).metrics().build();
+        manager.add("a", new Quick());
+        manager.add("a", new Quick());
+        manager.add("b", new Quick());
+        manager.notify("a");
+        manager.notify("a");
+        manager.notify("b");
+        manager.notify("c");
+        DispatchMetrics.Snapshot<String> snapshot = manager.metrics();
+        assertEquals(2, snapshot.getEvents().get("a").getNotifications());
+        assertEquals(4, snapshot.getEvents().get("a").getInvocations());
+        assertEquals(1, snapshot.getEvents().get("c").getNotifications());
+        assertEquals(0, snapshot.getEvents().get("c").getInvocations());
+        DispatchMetrics.Stats quick = snapshot.getListeners().get(Quick.class.getName());
+        assertEquals(5, quick.getInvocations());
+        assertEquals(5, quick.getLatency().getCount());
+    }
+
+    @Test
+    public void countsExceptionsAndSlowInvocations() {
+        ListenerManager<String, Object> manager = ListenerManager.<String, Object>builder(new Object())
+                .slowListenerThreshold(10, TimeUnit.MILLISECONDS)
+                .build();
+        manager.add("a", new Slow());
+        manager.add("a", new Failing());
+        try {
+            manager.notify("a");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        DispatchMetrics.Snapshot<String> snapshot = manager.metrics();
+        assertEquals(1, snapshot.getEvents().get("a").getExceptions());
+        assertEquals(1, snapshot.getEvents().get("a").getSlowInvocations());
+        assertEquals(1, snapshot.getListeners().get(Slow.class.getName()).getSlowInvocations());
+        assertEquals(0, snapshot.getListeners().get(Slow.class.getName()).getExceptions());
+        assertEquals(1, snapshot.getListeners().get(Failing.class.getName()).getExceptions());
+    }
+
+    @Test
+    public void metricsAreEmptyUnlessEnabled() {
+        ListenerManager<String, Object> manager = new ListenerManager<>(new Object());
+        manager.add("a", new Quick());
+        manager.notify("a");
+        assertTrue(manager.metrics().getEvents().isEmpty());
+    }
+}
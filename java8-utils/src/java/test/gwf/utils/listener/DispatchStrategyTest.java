@@ -0,0 +1,106 @@
+package gwf.utils.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+public class DispatchStrategyTest {
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor queue = tasks::add;
+
+    private Consumer<Object> record(final String name) {
+        return controller -> calls.add(name);
+    }
+
+    private ListenerManager<String, Object> manager(DispatchStrategy strategy) {
+        return ListenerManager.<String, Object>builder(new Object()).dispatch(strategy).build();
+    }
+
+    @Test
+    public void synchronousRunsListenersInOrderAndRethrowsTheFirstFailure() {
+        ListenerManager<String, Object> manager = manager(DispatchStrategy.synchronous());
+        IllegalStateException first = new IllegalStateException("first");
+        manager.add("event", record("a"));
+        manager.add("event", controller -> {
+            throw first;
+        });
+        manager.add("event", controller -> {
+            throw new IllegalStateException("second");
+        });
+        manager.add("event", record("d"));
+        try {
+            manager.notify("event");
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(first, e);
+        }
+        assertEquals(Arrays.asList("a", "d"), calls);
+    }
+
+    @Test
+    public void asyncRunsListenersInOneTask() {
+        ListenerManager<String, Object> manager = manager(DispatchStrategy.async(queue));
+        manager.add("event", record("a"));
+        manager.add("event", record("b"));
+        CompletableFuture<Void> done = manager.notifyAsync("event");
+        assertTrue(calls.isEmpty());
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(Arrays.asList("a", "b"), calls);
+        assertTrue(done.isDone());
+    }
+
+    @Test
+    public void parallelReportsTheFirstFailureInListenerOrder() {
+        ListenerManager<String, Object> manager = manager(DispatchStrategy.parallel(queue));
+        IllegalStateException first = new IllegalStateException("first");
+        manager.add("event", controller -> {
+            throw first;
+        });
+        manager.add("event", controller -> {
+            throw new IllegalStateException("second");
+        });
+        manager.add("event", record("c"));
+        CompletableFuture<Void> done = manager.notifyAsync("event");
+        assertEquals(3, tasks.size());
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            tasks.get(i).run();
+        }
+        try {
+            done.join();
+            fail();
+        } catch (CompletionException e) {
+            assertSame(first, e.getCause());
+        }
+        assertEquals(Collections.singletonList("c"), calls);
+    }
+
+    @Test
+    public void orderedPerEventDeliversOneEventKeyAtATime() {
+        ListenerManager<String, Object> manager = manager(DispatchStrategy.orderedPerEvent(queue));
+        int[] deliveries = new int[1];
+        manager.add("a", controller -> calls.add("a" + ++deliveries[0]));
+        manager.add("b", record("b"));
+        manager.notify("a");
+        manager.notify("a");
+        manager.notify("b");
+        // one drain task per event key, the second "a" waits for the first
+        assertEquals(2, tasks.size());
+        tasks.get(1).run();
+        tasks.get(0).run();
+        assertEquals(Arrays.asList("b", "a1", "a2"), calls);
+    }
+}
@@ -0,0 +1,131 @@
+package gwf.utils.listener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Description: Compares the cost of finding an event's listeners in {@link EnumListenerManager}
+ * with {@link ListenerManager} and with the former HashMap-based manager, for String and
+ * enum event keys. Each call notifies the next of eight events, each with one listener.
+ * <br>
+ * Run with <code>mvn -P jmh test-compile exec:exec -Djmh.args=EnumListenerManagerBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnumListenerManagerBenchmark {
+    private enum Event {
+        OPEN, LOAD, VALIDATE, SAVE, COMMIT, ROLLBACK, REFRESH, CLOSE
+    }
+
+    private static final Event[] events = Event.values();
+    private static final String[] names = new String[events.length];
+    static {
+        for (Event event : events) {
+            names[event.ordinal()] = event.name();
+        }
+    }
+
+    private final Consumer<Object> listener = controller -> Blackhole.consumeCPU(1);
+    private HashMapListenerManager<String, Object> hashMapStrings;
+    private HashMapListenerManager<Event, Object> hashMapEnums;
+    private ListenerManager<String, Object> strings;
+    private ListenerManager<Event, Object> enums;
+    private EnumListenerManager<Event, Object> enumManager;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Object controller = new Object();
+        hashMapStrings = new HashMapListenerManager<>(controller);
+        hashMapEnums = new HashMapListenerManager<>(controller);
+        strings = new ListenerManager<>(controller);
+        enums = new ListenerManager<>(controller);
+        enumManager = new EnumListenerManager<>(Event.class, controller);
+        for (Event event : events) {
+            hashMapStrings.add(event.name(), listener);
+            hashMapEnums.add(event, listener);
+            strings.add(event.name(), listener);
+            enums.add(event, listener);
+            enumManager.add(event, listener);
+        }
+    }
+
+    private int next() {
+        return next = (next + 1) & (events.length - 1);
+    }
+
+    @Benchmark
+    public void hashMapStringKeys() {
+        hashMapStrings.notify(names[next()]);
+    }
+
+    @Benchmark
+    public void hashMapEnumKeys() {
+        hashMapEnums.notify(events[next()]);
+    }
+
+    @Benchmark
+    public void stringKeys() {
+        strings.notify(names[next()]);
+    }
+
+    @Benchmark
+    public void enumKeys() {
+        enums.notify(events[next()]);
+    }
+
+    @Benchmark
+    public void enumListenerManager() {
+        enumManager.notify(events[next()]);
+    }
+
+    /**
+     * The dispatch path of the former ListenerManager, kept as the baseline: three map
+     * lookups per notify.
+     */
+    private static class HashMapListenerManager<T, E> {
+        private final Map<T, List<Consumer<E>>> eventListeners = new HashMap<>();
+        private final E controller;
+
+        private HashMapListenerManager(E controller) {
+            this.controller = controller;
+        }
+
+        private void add(T event, Consumer<E> listener) {
+            getListeners(event).add(listener);
+        }
+
+        private void notify(T event) {
+            for (Consumer<E> listener : getListeners(event)) {
+                listener.accept(controller);
+            }
+        }
+
+        private List<Consumer<E>> getListeners(T event) {
+            if (!eventListeners.containsKey(event)) {
+                eventListeners.put(event, new ArrayList<>());
+            }
+            return eventListeners.get(event);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package gwf.utils.listener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Description: Measures {@link ListenerManager#notify(Object) notify} throughput for events
+ * with 1 to 10,000 listeners, alone and while another thread keeps adding and cancelling
+ * listeners of the same event.
+ * <br>
+ * Run with <code>mvn -P jmh test-compile exec:exec -Djmh.args=ListenerManagerBenchmark</code>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerManagerBenchmark {
+    private static final String EVENT = "save";
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    private int listeners;
+
+    private ListenerManager<String, Object> manager;
+    private final Consumer<Object> listener = controller -> Blackhole.consumeCPU(1);
+
+    @Setup
+    public void setup() {
+        manager = new ListenerManager<>(new Object());
+        for (int i = 0; i < listeners; i++) {
+            manager.add(EVENT, controller -> Blackhole.consumeCPU(1));
+        }
+    }
+
+    @Benchmark
+    @Group("quiet")
+    @GroupThreads(4)
+    public void notifyOnly() {
+        manager.notify(EVENT);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public void notifyDuringChurn() {
+        manager.notify(EVENT);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void addAndCancel() {
+        manager.add(EVENT, listener).cancel();
+    }
+}
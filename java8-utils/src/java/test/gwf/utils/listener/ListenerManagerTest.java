@@ -0,0 +1,75 @@
+package gwf.utils.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+public class ListenerManagerTest {
+    private final ListenerManager<String, Object> manager = new ListenerManager<>(new Object());
+    private final List<String> calls = new ArrayList<>();
+
+    private Consumer<Object> record(final String name) {
+        return controller -> calls.add(name);
+    }
+
+    @Test
+    public void patternRegisteredBeforeExactListenerStillMatches() {
+        manager.onPattern("order.*").add(record("pattern"));
+        manager.add("order.created", record("exact"));
+        manager.notify("order.created");
+        assertEquals(2, calls.size());
+        assertTrue(calls.contains("pattern"));
+        assertTrue(calls.contains("exact"));
+    }
+
+    @Test
+    public void patternRegisteredAfterExactListenerMatches() {
+        manager.add("order.created", record("exact"));
+        manager.onPattern("order.*").add(record("pattern"));
+        manager.notify("order.created");
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void unmatchedEventsDoNotReceivePatternListeners() {
+        manager.onPattern("order.*").add(record("pattern"));
+        manager.notify("invoice.created");
+        manager.notify("order.created");
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void removeDropsEveryPatternRegistrationOfTheListener() {
+        Consumer<Object> listener = record("pattern");
+        manager.onPattern("order.*").add(listener);
+        manager.onPattern("*.created").add(listener);
+        manager.notify("order.created");
+        assertEquals(2, calls.size());
+        manager.remove(listener);
+        manager.notify("order.created");
+        manager.notify("order.shipped");
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void patternRegisteredAfterMissMatches() {
+        manager.onPattern("invoice.*").add(record("invoice"));
+        manager.notify("order.created");
+        manager.onPattern("order.**").add(record("order"));
+        manager.notify("order.created");
+        assertEquals(1, calls.size());
+        assertTrue(calls.contains("order"));
+    }
+
+    @Test
+    public void topicSegmentsKeepEmptySegments() {
+        assertEquals(3, TopicPattern.segmentsOf("a..b").length);
+        assertEquals(2, TopicPattern.segmentsOf("a.").length);
+        assertEquals(1, TopicPattern.segmentsOf("a").length);
+    }
+}
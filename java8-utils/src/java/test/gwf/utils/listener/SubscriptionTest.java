@@ -0,0 +1,65 @@
+package gwf.utils.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+public class SubscriptionTest {
+    private final ListenerManager<String, Object> manager = new ListenerManager<>(new Object());
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    public void cancelStopsDelivery() {
+        Subscription subscription = manager.add("event", controller -> calls.incrementAndGet());
+        manager.notify("event");
+        subscription.cancel();
+        subscription.cancel();
+        assertFalse(subscription.isActive());
+        manager.notify("event");
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void cancelFromWithinTheListener() {
+        Subscription[] self = new Subscription[1];
+        self[0] = manager.add("event", controller -> {
+            calls.incrementAndGet();
+            self[0].cancel();
+        });
+        manager.notify("event");
+        manager.notify("event");
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void listenerIsRemovedAfterItsInvocations() {
+        Subscription once = manager.once("event", controller -> calls.incrementAndGet());
+        Subscription twice = manager.add("event", controller -> calls.addAndGet(10), 2);
+        for (int i = 0; i < 3; i++) {
+            manager.notify("event");
+        }
+        assertEquals(21, calls.get());
+        assertFalse(once.isActive());
+        assertFalse(twice.isActive());
+    }
+
+    @Test
+    public void weakListenerIsRemovedOnceCollected() throws InterruptedException {
+        Consumer<Object> listener = controller -> calls.incrementAndGet();
+        Subscription subscription = manager.addWeak("event", listener);
+        manager.notify("event");
+        assertTrue(subscription.isActive());
+        listener = null;
+        for (int i = 0; i < 50 && subscription.isActive(); i++) {
+            System.gc();
+            Thread.sleep(10);
+            manager.notify("event");
+        }
+        assertFalse(subscription.isActive());
+    }
+}
@@ -0,0 +1,104 @@
+package gwf.utils.listener;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Description: Measures {@link ListenerManager#notify(Object) notify} with priorities,
+ * filters and wildcard topics. Every manager has the same patterns registered, so each
+ * benchmark also pays for whatever pattern handling its event needs:
+ * <ul>
+ * <li><code>exact</code> - four exact listeners of different priorities</li>
+ * <li><code>wildcard</code> - an event whose listeners all come from patterns</li>
+ * <li><code>filtered</code> - four listeners, three of which are filtered out</li>
+ * <li><code>filteredInHandler</code> - the same, filtering inside the listeners instead</li>
+ * <li><code>miss</code> - an event no pattern matches, answered from the miss cache</li>
+ * <li><code>missUncached</code> - more distinct unmatched events than the miss cache holds</li>
+ * </ul>
+ * Run with <code>mvn -P jmh test-compile exec:exec -Djmh.args=TopicDispatchBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicDispatchBenchmark {
+    private static final int UNCACHED_EVENTS = 4096;
+
+    private static class Controller {
+        private boolean dirty = false;
+    }
+
+    private ListenerManager<String, Controller> manager;
+    private final String[] uncached = new String[UNCACHED_EVENTS];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        manager = new ListenerManager<>(new Controller());
+        manager.onPattern("save.*").add(c -> Blackhole.consumeCPU(1));
+        manager.onPattern("save.*").priority(10).add(c -> Blackhole.consumeCPU(1));
+        manager.onPattern("**.done").add(c -> Blackhole.consumeCPU(1));
+        manager.onPattern("audit.**").add(c -> Blackhole.consumeCPU(1));
+        for (int priority = 0; priority < 4; priority++) {
+            manager.on("exact").priority(priority).add(c -> Blackhole.consumeCPU(1));
+        }
+        manager.add("filtered", c -> Blackhole.consumeCPU(1));
+        for (int i = 0; i < 3; i++) {
+            manager.on("filtered").filter(c -> c.dirty).add(c -> Blackhole.consumeCPU(1));
+        }
+        manager.add("filteredInHandler", c -> Blackhole.consumeCPU(1));
+        for (int i = 0; i < 3; i++) {
+            manager.add("filteredInHandler", c -> {
+                if (c.dirty) {
+                    Blackhole.consumeCPU(1);
+                }
+            });
+        }
+        for (int i = 0; i < UNCACHED_EVENTS; i++) {
+            uncached[i] = "load.item" + i;
+        }
+    }
+
+    @Benchmark
+    public void exact() {
+        manager.notify("exact");
+    }
+
+    @Benchmark
+    public void wildcard() {
+        manager.notify("save.order");
+    }
+
+    @Benchmark
+    public void filtered() {
+        manager.notify("filtered");
+    }
+
+    @Benchmark
+    public void filteredInHandler() {
+        manager.notify("filteredInHandler");
+    }
+
+    @Benchmark
+    public void miss() {
+        manager.notify("load.order");
+    }
+
+    @Benchmark
+    public void missUncached() {
+        manager.notify(uncached[next = (next + 1) & (UNCACHED_EVENTS - 1)]);
+    }
+}